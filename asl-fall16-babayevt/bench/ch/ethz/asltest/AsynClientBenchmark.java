@@ -0,0 +1,136 @@
+package ch.ethz.asltest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// AsynClient parsing what one read of each replica brings for a batch
+// of writes, and handing the final responses to the selector thread:
+// "STORED" lines in text mode, a single NOOP frame after quiet writes
+// in binary mode
+// every thread has its own client, connected to stand-ins but never
+// started, and one invocation registers the batch in in-flight table,
+// parses the replies of all replicas and releases the responses
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsynClientBenchmark {
+
+	@Param({ "text", "binary" })
+	public String protocol;
+
+	@Param({ "1", "3" })
+	public int replicas;
+
+	@Param({ "1", "16", "64" })
+	public int batch;
+
+	// 0 waits for every replica
+	@Param({ "0", "1" })
+	public int quorum;
+
+	private MessageProcessor messageProcessor;
+
+	private AsynClient client;
+
+	private List<ArrayDeque<Message>> queues;
+
+	private Message[] requests;
+
+	private ByteBuffer readBuffer;
+
+	private ByteBuffer noop = ByteBuffer.allocate(BinaryProtocol.HEADER_LENGTH);
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		MiddlewareConfig config = new MiddlewareConfig();
+		config.getMode = "threads";
+		this.messageProcessor = new MessageProcessor(
+				BenchServers.addresses(this.replicas), 0, this.replicas,
+				config);
+		MiddlewareServer server = new MiddlewareServer(this.messageProcessor,
+				this.messageProcessor.inFlight,
+				this.messageProcessor.bufferPool, new LatencyStats(
+						Cluster.MAX_SERVERS), config);
+		ClientConnection connection = new ClientConnection(null);
+
+		Cluster cluster = this.messageProcessor.cluster();
+		this.client = new AsynClient(cluster.replicasOf(cluster.get(0)),
+				new ArrayBlockingQueue<Message>(1),
+				this.messageProcessor.bufferPool,
+				this.protocol.equals("binary"), this.quorum, 0);
+		this.queues = new ArrayList<ArrayDeque<Message>>();
+		for (int i = 0; i < this.replicas; i++) {
+			this.queues.add(new ArrayDeque<Message>());
+		}
+		this.requests = new Message[this.batch];
+		for (int i = 0; i < this.batch; i++) {
+			this.requests[i] = new Message(server, connection, null);
+			this.requests[i].isGet = false;
+		}
+		this.readBuffer = ByteBuffer.allocateDirect(4096);
+	}
+
+	@Benchmark
+	public int parseBatch() {
+		InFlightTable inFlight = this.messageProcessor.inFlight;
+		for (Message request : this.requests) {
+			request.state = new RequestState();
+			inFlight.register(request);
+			for (ArrayDeque<Message> queue : this.queues) {
+				queue.add(request);
+			}
+		}
+
+		int parsed = 0;
+		for (ArrayDeque<Message> queue : this.queues) {
+			this.fill();
+			if (this.protocol.equals("binary")) {
+				parsed += this.client.readFrames(queue, this.readBuffer);
+			} else {
+				parsed += this.client.readLines(queue, this.readBuffer);
+			}
+		}
+
+		for (Message request : this.requests) {
+			this.messageProcessor.bufferPool.release(request.response);
+			request.response = null;
+			inFlight.remove(request);
+		}
+		return parsed;
+	}
+
+	// what memcached answers to the batch
+	private void fill() {
+		this.readBuffer.clear();
+		if (this.protocol.equals("binary")) {
+			BinaryProtocol.noop(this.noop,
+					(int) this.requests[this.batch - 1].id);
+			this.readBuffer.put(this.noop);
+		} else {
+			for (int i = 0; i < this.batch; i++) {
+				this.readBuffer.put(RequestState.STORED);
+			}
+		}
+		this.readBuffer.flip();
+	}
+}
@@ -0,0 +1,60 @@
+package ch.ethz.asltest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// memcached stand-ins for benchmarks that need live connections, they are
+// started once per JVM and shared by all trials of the fork, and
+// helpers to make memaslap like keys and commands
+public class BenchServers {
+
+	private static final int FIRST_PORT = 23211;
+
+	private static final String KEY_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+
+	private static int started = 0;
+
+	private BenchServers() {
+	}
+
+	// addresses of count stand-ins, missing ones are started
+	public static synchronized List<String> addresses(int count)
+			throws IOException {
+		while (started < count) {
+			MemcachedStandIn standIn = new MemcachedStandIn(FIRST_PORT
+					+ started, 0, 1);
+			Thread thread = new Thread(standIn, "StandInAcceptor"
+					+ (FIRST_PORT + started));
+			thread.setDaemon(true);
+			thread.start();
+			started++;
+		}
+		List<String> addresses = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			addresses.add("127.0.0.1:" + (FIRST_PORT + i));
+		}
+		return addresses;
+	}
+
+	public static String key(Random random, int keySize) {
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i < keySize; i++) {
+			key.append(KEY_CHARS.charAt(random.nextInt(KEY_CHARS.length())));
+		}
+		return key.toString();
+	}
+
+	// command in a direct buffer between 0 and limit, like requests
+	// coming from BufferPool
+	public static ByteBuffer command(String command) {
+		ByteBuffer data = ByteBuffer.allocateDirect(command.length());
+		for (int i = 0; i < command.length(); i++) {
+			data.put((byte) command.charAt(i));
+		}
+		data.flip();
+		return data;
+	}
+}
@@ -0,0 +1,93 @@
+package ch.ethz.asltest;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// MessageProcessor.processData() for single key GETs, from parsing the
+// key to the request sitting in the GET queue of its server
+// GET queues have no clients (threads mode with 0 threads), the
+// benchmark takes the request out again itself, so the queue never
+// fills up and only the selector thread side of the hand-off is measured
+// writes are left out, their asynchronous clients would answer to a
+// selector thread that does not exist here
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	@Param({ "3", "7", "16" })
+	public int servers;
+
+	@Param({ "primary", "least", "p2c" })
+	public String readMode;
+
+	private MessageProcessor messageProcessor;
+
+	@Setup
+	public void setup() throws Exception {
+		MiddlewareConfig config = new MiddlewareConfig();
+		config.getMode = "threads";
+		config.singleFlight = false;
+		config.readMode = this.readMode;
+		config.queueCapacity = 65536;
+		this.messageProcessor = new MessageProcessor(
+				BenchServers.addresses(this.servers), 0, 1, config);
+	}
+
+	// GETs of one benchmark thread, used round robin
+	@State(Scope.Thread)
+	public static class Requests {
+
+		@Param({ "16", "64", "250" })
+		public int keySize;
+
+		private Message[] requests = new Message[1024];
+
+		private int next = 0;
+
+		@Setup
+		public void setup() {
+			Random random = new Random(42);
+			for (int i = 0; i < this.requests.length; i++) {
+				this.requests[i] = new Message(null, null,
+						BenchServers.command("get "
+								+ BenchServers.key(random, this.keySize)
+								+ "\r\n"));
+			}
+		}
+
+		Message next() {
+			this.next = (this.next + 1) & (this.requests.length - 1);
+			return this.requests[this.next];
+		}
+	}
+
+	@Benchmark
+	public boolean processGet(Requests requests) {
+		Message request = requests.next();
+		boolean taken = this.messageProcessor.processData(request);
+		Backend backend = this.messageProcessor.cluster().get(request.backend);
+		backend.getQueue.poll();
+		// least outstanding mode counts the GET until it is answered
+		if (request.readFrom != null) {
+			request.readFrom.outstanding.decrementAndGet();
+			request.readFrom = null;
+		}
+		return taken;
+	}
+}
@@ -0,0 +1,83 @@
+package ch.ethz.asltest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// routing of one key, that is hash of the key and binary search on the
+// ring, the ring is built by Cluster exactly as in the middleware and
+// shared by all benchmark threads like selector threads share it
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashRingBenchmark {
+
+	@Param({ "3", "7", "16" })
+	public int servers;
+
+	@Param({ "md5", "murmur3" })
+	public String hash;
+
+	private HashRing ring;
+
+	@Setup
+	public void setup() throws Exception {
+		List<Backend> backends = new ArrayList<Backend>();
+		for (int i = 0; i < this.servers; i++) {
+			String address = "127.0.0.1:" + (11211 + i);
+			backends.add(new Backend(i, "127.0.0.1", 11211 + i, HashRing
+					.nodeName(i, address), new ArrayBlockingQueue<Message>(1)));
+		}
+		this.ring = new Cluster(backends, 1, HashRing.hashFunction(this.hash)).ring;
+	}
+
+	// keys of one benchmark thread, used round robin
+	@State(Scope.Thread)
+	public static class Keys {
+
+		@Param({ "16", "64", "250" })
+		public int keySize;
+
+		private ByteBuffer[] keys = new ByteBuffer[1024];
+
+		private int next = 0;
+
+		@Setup
+		public void setup() {
+			Random random = new Random(42);
+			for (int i = 0; i < this.keys.length; i++) {
+				this.keys[i] = BenchServers.command(BenchServers.key(random,
+						this.keySize));
+			}
+		}
+
+		ByteBuffer next() {
+			this.next = (this.next + 1) & (this.keys.length - 1);
+			return this.keys[this.next];
+		}
+	}
+
+	@Benchmark
+	public int get(Keys keys) {
+		ByteBuffer key = keys.next();
+		return this.ring.get(key, 0, key.limit());
+	}
+}
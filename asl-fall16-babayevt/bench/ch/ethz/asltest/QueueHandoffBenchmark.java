@@ -0,0 +1,74 @@
+package ch.ethz.asltest;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// hand-off of requests between a selector thread and clients of
+// memcached through the ArrayBlockingQueues of the servers: in every
+// group one producer spreads requests over the queues of all servers
+// and one consumer takes them out of all of them
+// offer() and poll() do not block, like processData() and the pipelined
+// client, so a benchmark thread never hangs at the end of an iteration,
+// a full or empty queue counts as an operation that did nothing
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueHandoffBenchmark {
+
+	@Param({ "1", "3", "7" })
+	public int servers;
+
+	@Param({ "64", "1024" })
+	public int capacity;
+
+	private BlockingQueue<Message>[] queues;
+
+	private Message request = new Message(null, null, null);
+
+	private int nextOffer = 0;
+
+	private int nextPoll = 0;
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setup() {
+		this.queues = new BlockingQueue[this.servers];
+		for (int i = 0; i < this.servers; i++) {
+			this.queues[i] = new ArrayBlockingQueue<Message>(this.capacity);
+		}
+	}
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public boolean offer() {
+		this.nextOffer = (this.nextOffer + 1) % this.servers;
+		return this.queues[this.nextOffer].offer(this.request);
+	}
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public Message poll() {
+		this.nextPoll = (this.nextPoll + 1) % this.servers;
+		return this.queues[this.nextPoll].poll();
+	}
+}
@@ -0,0 +1,25 @@
+package ch.ethz.asltest;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// runs benchmarks matching a regex once for every thread count, results
+// of each thread count go to jmh-t<threads>.csv, ant bench calls it with
+// -Dbench.include and -Dbench.threads
+public class RunBench {
+
+	public static void main(String[] args) throws Exception {
+		String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+		String threads = args.length > 1 ? args[1] : "1";
+
+		for (String count : threads.split(",")) {
+			Options options = new OptionsBuilder().include(include)
+					.threads(Integer.parseInt(count.trim()))
+					.resultFormat(ResultFormatType.CSV)
+					.result("jmh-t" + count.trim() + ".csv").build();
+			new Runner(options).run();
+		}
+	}
+}
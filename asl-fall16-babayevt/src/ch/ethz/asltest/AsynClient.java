@@ -3,104 +3,297 @@ package ch.ethz.asltest;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AsynClient implements Runnable {
 
-	// id of primary server for this async client
-	private int id;
+	// at most this many requests are taken from queue at once
+	private static final int MAX_BATCH = 64;
 
+	// how often a retired client looks if it is done, in milliseconds
+	private static final long RETIRE_CHECK = 10;
+
+	// a broken replica channel is opened again at most this often, in
+	// nanoseconds
+	private static final long RECONNECT_INTERVAL = 100000000L;
+
+	// replica whose socket leaves more than this many bytes of writes
+	// unsent has stopped reading, also without a timeout
+	private static final int MAX_PENDING = 16 * 1024 * 1024;
+
+	// addresses of primary server and its replicas, primary first
 	private List<String> addresses = new ArrayList<String>();
 
 	private int[] ports;
 
-	// this field will also hold reference to mwServer
-	// we need it to send response back to memaslap
-	private Message currentRequest;
+	// health of every replica, failed and timed out writes are reported
+	// there, replica whose circuit is open gets no writes
+	private BackendHealth[] healths;
+
+	// replica channel that failed, writes count as failed on it until
+	// it is open again
+	private boolean[] broken;
+
+	// nanoTime of next try to open a broken channel again
+	private long[] reconnectAt;
+
+	// nanoTime of last response of a replica, or of the write that gave
+	// it something to answer after it answered everything
+	private long[] progressAt;
+
+	// replica that leaves writes unanswered longer than this many
+	// milliseconds has failed, 0 waits forever (-x)
+	private int timeoutMillis;
+
+	// requests taken from queue in one go, list is reused
+	private List<Message> batch = new ArrayList<Message>(MAX_BATCH);
 
-	private int numServers;
+	// data of batch, written to every replica with one gathering write,
+	// in binary mode frames of batch followed by noop
+	private ByteBuffer[] batchData = new ByteBuffer[MAX_BATCH + 1];
+
+	// binary protocol to memcached (-b binary), writes are sent as quiet
+	// frames and every batch ends with a noop, so memcached answers only
+	// failed writes and the noop instead of every single write
+	private boolean binary;
+
+	// noop frame ending every batch, its opaque is id of the last write
+	private ByteBuffer noop = ByteBuffer.allocateDirect(BinaryProtocol.HEADER_LENGTH);
 
 	private int numReplications;
 
+	// client gets its answer once this many replicas stored the write
+	// (-a), the other replicas are still waited for, all of them by default
+	private int writeQuorum;
+
+	// writes that were answered STORED or DELETED after the quorum, but
+	// then failed on a replica that answered later, read by stats
+	public final AtomicLong lateFailures = new AtomicLong();
+
 	// will need to fix time of receving response
 	private long time = 0;
 
 	// all socket channels that we open for this client
 	private List<SocketChannel> socketChannels;
 
-	private ByteBuffer writeBuffer = ByteBuffer.allocate(1536);
+	// one read buffer per socket channel, taken from the pool once,
+	// it also keeps incomplete response line until the rest arrives
+	private ByteBuffer[] readBuffers;
+
+	// bytes of batches the socket of a replica did not take yet, copied
+	// since batch buffers go back to the pool before that replica gets
+	// them, written when selector finds the channel writable, null while
+	// there are none, buffer is kept in write mode
+	private ByteBuffer[] pending;
 
 	// main queue that is passed by messageProcessor
 	private BlockingQueue<Message> queue;
 
-	// keeps tracking of what should come at which channel
-	private Map<SocketChannel, ArrayBlockingQueue<SocketChannel>> localQueue =
-			new HashMap<SocketChannel, ArrayBlockingQueue<SocketChannel>>();
-
-	// keeps tracking request states for replications
-	private Map<SocketChannel, RequestState> requestStates =
-			new HashMap<SocketChannel, RequestState>();
-
-	// gives access to Message object where we track times
-	// and other instrumentation stuff
-	public Map<SocketChannel, Message> loggerMap;
-
-	public AsynClient(int id, List<String> addresses, int[] ports,
-			BlockingQueue<Message> queue, int numServers, int numReplications,
-			Map<SocketChannel, Message> loggerMap) throws IOException {
-		this.id = id;
-		this.addresses = addresses;
-		this.ports = ports;
-		this.numServers = numServers;
-		this.numReplications = numReplications;
+	// tells us which replica channel has responses to read, so thread
+	// sleeps while there is nothing to do instead of polling channels
+	private Selector selector;
+
+	// true while our thread is about to sleep in select(), so
+	// messageProcessor wakes us up only when it is needed
+	private AtomicBoolean sleeping = new AtomicBoolean(false);
+
+	// keeps tracking of what should come at which channel, requests in
+	// the order they were written to each replica channel, a request
+	// stays here until the replica answered it, also when its client got
+	// the answer from the quorum already and its table entry is gone
+	private List<ArrayDeque<Message>> localQueue;
+
+	private BufferPool bufferPool;
+
+	// nanoTime after which a retired client takes no more requests,
+	// 0 while client is in use
+	private volatile long retireAt = 0;
+
+	// replicas are primary server and the servers its writes are
+	// replicated to, their channels are connected when constructor
+	// returns, a replica that cannot be reached is broken from the start
+	// and reconnect() tries it again
+	public AsynClient(Backend[] replicas, BlockingQueue<Message> queue,
+			BufferPool bufferPool, boolean binary, int writeQuorum,
+			int timeoutMillis) throws IOException {
+		this.binary = binary;
+		this.numReplications = replicas.length;
+		this.writeQuorum = writeQuorum > 0 ? Math.min(writeQuorum,
+				this.numReplications) : this.numReplications;
+		this.timeoutMillis = timeoutMillis;
+		this.ports = new int[this.numReplications];
+		this.healths = new BackendHealth[this.numReplications];
+		this.broken = new boolean[this.numReplications];
+		this.reconnectAt = new long[this.numReplications];
+		this.progressAt = new long[this.numReplications];
+		for (int i = 0; i < this.numReplications; i++) {
+			this.addresses.add(replicas[i].address);
+			this.ports[i] = replicas[i].port;
+			this.healths[i] = replicas[i].health;
+		}
 		this.queue = queue;
 		this.socketChannels = new ArrayList<SocketChannel>();
-		this.loggerMap = loggerMap;
+		this.bufferPool = bufferPool;
 
 		// opens socket channels only for servers we need to replicate to
-		for (int i = this.id; i < this.id + this.numReplications; i++) {
-			this.socketChannels.add(this.initiateConnection(i % this.numServers));
+		// and registers them with selector, attachment tells index of
+		// replica channel
+		this.selector = Selector.open();
+		this.readBuffers = new ByteBuffer[this.numReplications];
+		this.pending = new ByteBuffer[this.numReplications];
+		this.localQueue = new ArrayList<ArrayDeque<Message>>();
+		for (int i = 0; i < this.numReplications; i++) {
+			this.localQueue.add(new ArrayDeque<Message>());
+			this.readBuffers[i] = bufferPool.acquire(4096);
+			SocketChannel socketChannel;
+			try {
+				socketChannel = this.connect(i);
+			} catch (IOException e) {
+				System.err.println("replica " + this.addresses.get(i) + ":"
+						+ this.ports[i] + " failed: " + e);
+				this.healths[i].failure();
+				this.broken[i] = true;
+				// closed channel stands in until reconnect() replaces it
+				socketChannel = SocketChannel.open();
+				socketChannel.close();
+			}
+			this.socketChannels.add(socketChannel);
 		}
+	}
 
-		// gives half a second to prepare connections for "finishing" them
-		try {
-			Thread.sleep(500);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+	// puts write to our queue, false if queue is full
+	public boolean offer(Message request) {
+		if (!this.queue.offer(request)) {
+			return false;
 		}
+		this.wakeup();
+		return true;
+	}
 
-		// finish connections
-		for (int i = 0; i < this.numReplications; i++) {
-			this.finishConnection(this.socketChannels.get(i));
+	public int queueDepth() {
+		return this.queue.size();
+	}
+
+	// called when membership changes and this client is not used anymore,
+	// requests queued until stopAt are still written and answered, then
+	// connections are closed and thread ends
+	public void retire(long stopAt) {
+		this.retireAt = stopAt;
+		this.selector.wakeup();
+	}
+
+	// called by messageProcessor after it put request to our queue
+	public void wakeup() {
+		if (this.sleeping.compareAndSet(true, false)) {
+			this.selector.wakeup();
 		}
 	}
 
 	public void run() {
 		while (true) {
 			try {
-				if (queue.peek() != null) {
+				if (this.retireAt != 0 && this.isDone()) {
+					this.close();
+					return;
+				}
+
+				if (this.retireAt == 0) {
+					this.reconnect();
+				}
+
+				// flag is set before we look at the queue, so request that
+				// comes after our look always wakes the selector up
+				this.sleeping.set(true);
+				this.queue.drainTo(this.batch, MAX_BATCH);
+
+				if (!this.batch.isEmpty()) {
+					this.sleeping.set(false);
+					long now = System.nanoTime();
+					int n = 0;
+					for (int j = 0; j < this.batch.size(); j++) {
+						Message currentRequest = this.batch.get(j);
+						// finalize logging time spent in queue
+						currentRequest.queueTime =
+								(now - currentRequest.queueTime) / 1000;
+						// waited too long, client already got an error
+						if (currentRequest.expire(now)) {
+							continue;
+						}
+						if (this.binary && !this.encode(currentRequest)) {
+							continue;
+						}
+						currentRequest.state = new RequestState();
+						if (this.binary) {
+							// frame tells if it is a delete, response does not
+							currentRequest.state.delete = currentRequest.data
+									.get(0) == 'd';
+						}
+						this.batch.set(n, currentRequest);
+						this.batchData[n++] = this.binary ? currentRequest.frame
+								: currentRequest.data;
+					}
+					// write whole batch to all socket channels, start
+					// logging processing time
+					if (n > 0) {
+						now = System.nanoTime();
+						for (int j = 0; j < n; j++) {
+							this.batch.get(j).processingTime = now;
+						}
+						for (int i = 0; i < numReplications; i++) {
+							this.write(i, n);
+						}
+					}
+					if (this.binary) {
+						for (int j = 0; j < n; j++) {
+							this.bufferPool.release(this.batch.get(j).frame);
+							this.batch.get(j).frame = null;
+						}
+					}
+					Arrays.fill(this.batchData, 0, n, null);
+					this.batch.clear();
+					// there may be more requests queued, do not block
+					this.selector.selectNow();
+				} else if (this.retireAt != 0) {
+					// nobody wakes a retired client, it checks by itself
+					this.selector.select(RETIRE_CHECK);
+					this.sleeping.set(false);
+				} else if (this.timeoutMillis > 0) {
+					// same, but wake up in time to notice a replica
+					// that went silent
+					this.selector.select(this.timeoutMillis);
+					this.sleeping.set(false);
+				} else {
+					// nothing to write, sleep until some replica answers
+					// or messageProcessor wakes us up
+					this.selector.select();
+					this.sleeping.set(false);
+				}
 
-					this.currentRequest = this.queue.poll();
-					// finalize logging time spent in queue
-					if (currentRequest.isLogged) {
-						this.currentRequest.queueTime =
-								(System.nanoTime() - currentRequest.queueTime) / 1000;
+				// reads only from socket channels that have responses
+				Iterator<SelectionKey> selectedKeys = this.selector
+						.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+					if (key.isValid() && key.isReadable()) {
+						this.read((Integer) key.attachment());
 					}
-					this.requestStates.put(this.currentRequest.socket,
-							new RequestState());
-					// write to all socket channels
-					for (int i = 0; i < numReplications; i++) {
-						this.write(this.socketChannels.get(i),
-								this.currentRequest);
+					// reading may have broken the replica
+					if (key.isValid() && key.isWritable()) {
+						this.flush((Integer) key.attachment());
 					}
 				}
 
-				// reads from all socket channels
-				for (int i = 0; i < numReplications; i++) {
-					this.read(this.socketChannels.get(i));
+				if (this.timeoutMillis > 0) {
+					this.checkTimeouts();
 				}
 
 			} catch (IOException e) {
@@ -109,133 +302,390 @@ public class AsynClient implements Runnable {
 		}
 	}
 
-	// helper method to initiate socket connections
-	private SocketChannel initiateConnection(int i) throws IOException {
+	// retired client is done when no request can come anymore and all
+	// written ones were answered by every replica
+	private boolean isDone() {
+		if (System.nanoTime() < this.retireAt || !this.queue.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < this.numReplications; i++) {
+			if (!this.localQueue.get(i).isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
 
-		SocketChannel socketChannel = SocketChannel.open();
-		// put channel in non blocking mode for asynchronous requests handling
-		socketChannel.configureBlocking(false);
+	private void close() throws IOException {
+		for (int i = 0; i < this.numReplications; i++) {
+			this.socketChannels.get(i).close();
+			this.bufferPool.release(this.readBuffers[i]);
+			this.bufferPool.release(this.pending[i]);
+		}
+		this.selector.close();
+	}
 
-		socketChannel.connect(new InetSocketAddress(InetAddress
-				.getByName(this.addresses.get(i)), this.ports[i]));
+	// replica channel broke or timed out, its writes in flight fail and
+	// later ones fail right away until reconnect() opens it again
+	private void breakReplica(int replica, IOException e) {
+		System.err.println("replica " + this.addresses.get(replica) + ":"
+				+ this.ports[replica] + " failed: " + e);
+		this.healths[replica].failure();
+		this.broken[replica] = true;
+		this.reconnectAt[replica] = System.nanoTime() + RECONNECT_INTERVAL;
+		try {
+			this.socketChannels.get(replica).close();
+		} catch (IOException closeException) {
+			closeException.printStackTrace();
+		}
+		// a partial response is of no use anymore, neither are unsent
+		// writes
+		this.readBuffers[replica].clear();
+		this.bufferPool.release(this.pending[replica]);
+		this.pending[replica] = null;
 
-		return socketChannel;
+		this.time = System.nanoTime();
+		ArrayDeque<Message> queue = this.localQueue.get(replica);
+		Message request;
+		while ((request = queue.poll()) != null) {
+			this.handleResult(request, false);
+		}
 	}
 
-	// helper method to finish socket connections
-	private void finishConnection(SocketChannel socketChannel) {
+	// opens broken replica channels whose time has come, in blocking
+	// mode within timeout, they are non blocking afterwards
+	private void reconnect() {
+		long now = System.nanoTime();
+		for (int i = 0; i < this.numReplications; i++) {
+			if (!this.broken[i] || now < this.reconnectAt[i]
+					|| this.healths[i].open) {
+				continue;
+			}
+			this.reconnectAt[i] = now + RECONNECT_INTERVAL;
+			SocketChannel socketChannel;
+			try {
+				// key of the closed channel leaves selector with this
+				this.selector.selectNow();
+				socketChannel = this.connect(i);
+			} catch (IOException e) {
+				this.healths[i].failure();
+				continue;
+			}
+			this.socketChannels.set(i, socketChannel);
+			this.broken[i] = false;
+		}
+	}
+
+	// opens channel to replica in blocking mode within timeout (or as
+	// long as it takes without one) and registers it non blocking
+	private SocketChannel connect(int i) throws IOException {
+		SocketChannel socketChannel = SocketChannel.open();
 		try {
-			socketChannel.finishConnect();
+			socketChannel.socket().connect(new InetSocketAddress(
+					InetAddress.getByName(this.addresses.get(i)),
+					this.ports[i]), this.timeoutMillis);
+			socketChannel.configureBlocking(false);
+			socketChannel.register(this.selector, SelectionKey.OP_READ, i);
 		} catch (IOException e) {
-			e.printStackTrace();
-			return;
+			socketChannel.close();
+			throw e;
+		}
+		return socketChannel;
+	}
+
+	// replica that answers none of its writes for longer than timeout
+	// is stalled or gone
+	private void checkTimeouts() {
+		long now = System.nanoTime();
+		for (int i = 0; i < this.numReplications; i++) {
+			if (!this.broken[i] && !this.localQueue.get(i).isEmpty()
+					&& now - this.progressAt[i] > this.timeoutMillis * 1000000L) {
+				this.breakReplica(i, new SocketTimeoutException(
+						"no answer in " + this.timeoutMillis + " ms"));
+			}
 		}
 	}
 
-	private void write(SocketChannel socketChannel, Message request)
-			throws IOException {
-		this.writeBuffer.clear();
-		this.writeBuffer = ByteBuffer.wrap(request.data);
-		while (this.writeBuffer.hasRemaining()) {
-			socketChannel.write(this.writeBuffer);
+	// binary frame of a write, false if memcached has no binary command
+	// for it, request gets ERROR then
+	private boolean encode(Message request) {
+		request.frame = BinaryProtocol.encodeWrite(request.data,
+				(int) request.id, this.bufferPool);
+		if (request.frame != null) {
+			return true;
 		}
-		// start logging processing time when we write to primary server
-		if (request.isLogged) {
-			if (socketChannel == socketChannels.get(0)) {
-				request.processingTime = System.nanoTime();
+		request.successFlag = false;
+		request.reply(RequestState.ERROR);
+		return false;
+	}
+
+	// writes first n requests of batch to one replica channel with
+	// gathering writes, one syscall for the whole batch if socket takes it,
+	// what it does not take waits in pending, so a replica that reads
+	// slowly holds up neither us nor the other replicas
+	private void write(int replica, int n) {
+		// replica is known to be down, do not wait for it
+		if (this.broken[replica] || this.healths[replica].open) {
+			this.time = System.nanoTime();
+			for (int j = 0; j < n; j++) {
+				this.handleResult(this.batch.get(j), false);
 			}
+			return;
 		}
 
-		// add socket channel of memaslap client to queue in order to
-		// know which response to expect when reading
-		ArrayBlockingQueue<SocketChannel> queue = this.localQueue
-				.get(socketChannel);
-		if (queue == null) {
-			queue = new ArrayBlockingQueue<SocketChannel>(1000);
-			this.localQueue.put(socketChannel, queue);
+		SocketChannel socketChannel = this.socketChannels.get(replica);
+		int count = n;
+		if (this.binary) {
+			BinaryProtocol.noop(this.noop, (int) this.batch.get(n - 1).id);
+			this.batchData[count++] = this.noop;
+		}
+		// same buffers are written to every replica, so start from beginning
+		for (int j = 0; j < count; j++) {
+			this.batchData[j].position(0);
+		}
+		// requests go to queue first, in order to know which response
+		// to expect when reading, and to fail them if replica breaks
+		ArrayDeque<Message> queue = this.localQueue.get(replica);
+		if (queue.isEmpty()) {
+			this.progressAt[replica] = System.nanoTime();
+		}
+		for (int j = 0; j < n; j++) {
+			queue.add(this.batch.get(j));
+		}
+
+		try {
+			// earlier bytes still wait, these have to go after them
+			if (this.pending[replica] == null) {
+				socketChannel.write(this.batchData, 0, count);
+			}
+			for (int j = 0; j < count; j++) {
+				if (this.batchData[j].hasRemaining()) {
+					this.keep(replica, this.batchData[j]);
+				}
+			}
+		} catch (IOException e) {
+			this.breakReplica(replica, e);
+		}
+	}
+
+	// copies unsent rest of data to pending bytes of replica, selector
+	// tells us when its socket takes more
+	private void keep(int replica, ByteBuffer data) throws IOException {
+		ByteBuffer buffer = this.pending[replica];
+		int size = data.remaining();
+		if (buffer == null) {
+			buffer = this.bufferPool.acquire(size);
+			this.socketChannels.get(replica).keyFor(this.selector).interestOps(
+					SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} else if (buffer.remaining() < size) {
+			if (buffer.position() + size > MAX_PENDING) {
+				throw new IOException("replica takes no writes");
+			}
+			ByteBuffer bigger = this.bufferPool.acquire(Math.max(
+					buffer.capacity() * 2, buffer.position() + size));
+			buffer.flip();
+			bigger.put(buffer);
+			this.bufferPool.release(buffer);
+			buffer = bigger;
+		}
+		buffer.put(data);
+		this.pending[replica] = buffer;
+	}
+
+	// writes pending bytes of replica whose socket takes more again
+	private void flush(int replica) {
+		ByteBuffer buffer = this.pending[replica];
+		if (buffer == null) {
+			return;
+		}
+		SocketChannel socketChannel = this.socketChannels.get(replica);
+		buffer.flip();
+		try {
+			socketChannel.write(buffer);
+		} catch (IOException e) {
+			this.breakReplica(replica, e);
+			return;
+		}
+		buffer.compact();
+		if (buffer.position() == 0) {
+			this.bufferPool.release(buffer);
+			this.pending[replica] = null;
+			socketChannel.keyFor(this.selector).interestOps(
+					SelectionKey.OP_READ);
 		}
-		queue.add(request.socket);
 	}
 
-	private void read(SocketChannel socketChannel) throws IOException {
+	private void read(int replica) throws IOException {
 
-		ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+		SocketChannel socketChannel = this.socketChannels.get(replica);
+		ByteBuffer readBuffer = this.readBuffers[replica];
 
 		int numRead;
 		try {
 			numRead = socketChannel.read(readBuffer);
 		} catch (IOException e) {
-			e.printStackTrace();
-			socketChannel.close();
+			this.breakReplica(replica, e);
+			return;
+		}
+		if (numRead == -1) {
+			this.breakReplica(replica, new IOException(
+					"memcached closed connection"));
 			return;
 		}
 
 		// it's possible that we read nothing since we are asynchronous
-		if (numRead == -1 || numRead == 0) {
+		if (numRead == 0) {
 			return;
 		}
 
 		// if we receive more than nothing we should fix time of receiving
 		// to log processing time later
 		this.time = System.nanoTime();
+		this.progressAt[replica] = this.time;
+		// writes are timed for all replicas together, so their answers
+		// are never outliers of one of them
+		this.healths[replica].success();
 
 		// now we gonna check whom to send the responses back since
 		// we may receive more than 1 response in one buffer
-		ArrayBlockingQueue<SocketChannel> queue = localQueue.get(socketChannel);
+		ArrayDeque<Message> queue = this.localQueue.get(replica);
+
+		// and we have to parse read data, last response may be incomplete
+		readBuffer.flip();
+		int lineStart;
+		if (this.binary) {
+			lineStart = this.readFrames(queue, readBuffer);
+		} else {
+			lineStart = this.readLines(queue, readBuffer);
+		}
+		// keep incomplete line for the next read
+		readBuffer.position(lineStart);
+		readBuffer.compact();
+	}
 
-		// and we have to parse read data
-		String[] parsed = new String(readBuffer.array()).split("\r\n");
+	// handles complete text responses of buffer, every response is one
+	// line ending with "\r\n", and returns where the incomplete one starts
+	// readLines() and readFrames() are package private for the benchmarks
+	int readLines(ArrayDeque<Message> queue, ByteBuffer readBuffer) {
+		int lineStart = 0;
+		for (int i = 0; i < readBuffer.limit() - 1; i++) {
+			if (readBuffer.get(i) == '\r' && readBuffer.get(i + 1) == '\n') {
+				Message request = queue.poll();
+				if (request != null) {
+					this.handleResponse(request, readBuffer, lineStart);
+				}
+				lineStart = i + 2;
+				i++;
+			}
+		}
+		return lineStart;
+	}
 
-		for (int i = 0; i < parsed.length - 1; i++) {
-			SocketChannel belongsTo = queue.poll();
-			RequestState currentState = requestStates.get(belongsTo);
-			Message request = this.loggerMap.get(belongsTo);
+	// handles complete binary frames of buffer and returns where the
+	// incomplete one starts, memcached answers in order, so every write
+	// before the request of a frame has succeeded silently
+	int readFrames(ArrayDeque<Message> queue, ByteBuffer readBuffer) {
+		int start = 0;
+		int end;
+		while ((end = BinaryProtocol.end(readBuffer, start, readBuffer.limit())) != -1) {
+			int opaque = BinaryProtocol.opaque(readBuffer, start);
+			// noop ends the batch and the batch's last write has succeeded
+			boolean success = BinaryProtocol.opcode(readBuffer, start) == BinaryProtocol.NOOP
+					|| BinaryProtocol.status(readBuffer, start) == BinaryProtocol.SUCCESS;
+			// ids grow, so writes up to the frame's one are done, a noop
+			// may come after its last write already failed
+			while (!queue.isEmpty() && (int) queue.peek().id - opaque <= 0) {
+				Message request = queue.poll();
+				this.handleResult(request, (int) request.id != opaque
+						|| success);
+			}
+			start = end;
+		}
+		return start;
+	}
 
-			// update status of repl's made for this request
-			currentState.nReplMade++;
+	// binary response (or silence) of one replica to request
+	private void handleResult(Message request, boolean success) {
+		RequestState currentState = request.state;
 
-			// if response starts with DEL then it is an answer to DELETE request
-			// make delete flag true
-			if (parsed[i].startsWith("DEL")) {
-				currentState.delete = true;
-			}
+		// update status of repl's made for this request
+		currentState.nReplMade++;
+		if (success) {
+			currentState.nAcked++;
+		} else {
+			currentState.allSuccess = false;
+		}
+		this.completeIfDone(request);
+	}
 
-			// check if we get expected result, if not,
-			// put unsuccessful replication flag
-			// and unsuccessful operation flag for logging
-			if (currentState.delete) {
-				if (!parsed[i].startsWith("DEL")) {
-					currentState.allSuccess = false;
-					request.successFlag = false;
-				}
+	// handles one response line starting at lineStart which belongs
+	// to request
+	private void handleResponse(Message request, ByteBuffer buffer,
+			int lineStart) {
+		// if response starts with DEL then it is an answer to DELETE request
+		// make delete flag true
+		if (startsWith(buffer, lineStart, "DEL")) {
+			request.state.delete = true;
+		}
+
+		// check if we get expected result, if not, replica is counted
+		// as unsuccessful
+		if (request.state.delete) {
+			this.handleResult(request, startsWith(buffer, lineStart, "DEL"));
+		} else {
+			this.handleResult(request, startsWith(buffer, lineStart, "STO"));
+		}
+	}
+
+	// check if we received answers from enough servers for this request,
+	// client is answered once, either when quorum stored it or when
+	// every replica answered without reaching quorum
+	private void completeIfDone(Message request) {
+		RequestState currentState = request.state;
+		if (!currentState.replied
+				&& (currentState.nAcked == this.writeQuorum || currentState.nReplMade == this.numReplications)) {
+			currentState.replied = true;
+			request.server.written(request);
+
+			// finalize logging of processing time
+			request.processingTime = (time - request.processingTime) / 1000;
+
+			// if quorum was not reached, send ERROR back to memaslap client
+			// (and put unsuccessful operation flag for logging)
+			// else send STORED or DELETED based on delete flag
+			if (currentState.nAcked < this.writeQuorum) {
+				request.successFlag = false;
+				request.reply(RequestState.ERROR);
+			} else if (currentState.delete) {
+				request.reply(RequestState.DELETED);
 			} else {
-				if (!parsed[i].startsWith("STO")) {
-					currentState.allSuccess = false;
-					request.successFlag = false;
-				}
+				request.reply(RequestState.STORED);
 			}
+		}
 
-			// check if we received answers from all expected servers for this request
-			if (currentState.nReplMade == this.numReplications) {
-
-				// finalize logging of processing time
-				if (request.isLogged) {
-					request.processingTime =
-							(time - request.processingTime) / 1000;
-				}
+		// request belongs to selector thread since it was answered, only
+		// its state is still ours, until the last replica answered
+		if (currentState.nReplMade == this.numReplications) {
+			if (!currentState.allSuccess
+					&& currentState.nAcked >= this.writeQuorum) {
+				this.lateFailures.incrementAndGet();
+			}
+			// after all replicas answered, erase request state
+			request.state = null;
+		}
+	}
 
-				// if replications flag is false, send ERROR back to memaslap client
-				// else send STORED or DELETED based on delete flag
-				if (!currentState.allSuccess) {
-					request.server.send(belongsTo, RequestState.ERROR);
-				} else if (currentState.delete) {
-					request.server.send(belongsTo, RequestState.DELETED);
-				} else {
-					request.server.send(belongsTo, RequestState.STORED);
-				}
-				// after sending back, erase request state
-				this.requestStates.put(belongsTo, null);
+	// checks if bytes of buffer starting at offset begin with prefix
+	private static boolean startsWith(ByteBuffer buffer, int offset,
+			String prefix) {
+		if (buffer.limit() - offset < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buffer.get(offset + i) != prefix.charAt(i)) {
+				return false;
 			}
 		}
+		return true;
 	}
 }
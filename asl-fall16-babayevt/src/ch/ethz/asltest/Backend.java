@@ -0,0 +1,58 @@
+package ch.ethz.asltest;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// one memcached server of the cluster together with its GET queue and
+// clients, created when server joins and retired when it leaves, requests
+// already queued for it are still served after that
+public class Backend {
+
+	// index of server in overload counters and latency stats, it is given
+	// to the next server that joins after this one has left
+	public final int slot;
+
+	public final String address;
+
+	public final int port;
+
+	// virtual nodes of server on the hash ring are named after this
+	public final String nodeName;
+
+	// GETs for this server, taken by pipelinedClient or synClients
+	public final BlockingQueue<Message> getQueue;
+
+	// GETs queued for this server or on their way to it, replica reads
+	// pick the server with fewest of them
+	public final AtomicInteger outstanding = new AtomicInteger();
+
+	// failed and timed out requests of this server, see -x
+	public final BackendHealth health = new BackendHealth();
+
+	// only one of these two is used, depending on GET mode
+	public PipelinedClient pipelinedClient;
+
+	public SynThreadPool synClients;
+
+	// writes go to this server and its replicas through asynchronous
+	// client, it is replaced (together with its queue) when replicas
+	// of this server change
+	public volatile AsynClient asynClient;
+
+	// "host:port" of every server the asynchronous client writes to,
+	// this server first
+	public String[] replicas;
+
+	public Backend(int slot, String address, int port, String nodeName,
+			BlockingQueue<Message> getQueue) {
+		this.slot = slot;
+		this.address = address;
+		this.port = port;
+		this.nodeName = nodeName;
+		this.getQueue = getQueue;
+	}
+
+	public String name() {
+		return this.address + ":" + this.port;
+	}
+}
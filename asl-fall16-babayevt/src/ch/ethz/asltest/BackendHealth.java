@@ -0,0 +1,128 @@
+package ch.ethz.asltest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// health of one memcached server, its clients report requests that
+// failed or timed out (a late answer is as bad as none) and requests
+// that were answered, health monitor adds its probes
+// an answer much slower than recent answers of the server does not
+// clear failures, and health monitor looks at slow answers once per
+// window: a window lasts at least a second and until it has
+// MIN_WINDOW_ANSWERS answers, if more than SLOW_RATIO of them were slow
+// it is a slow window, a single slow answer or a short burst of them is
+// no failure, with pipelining an answer may just have waited behind
+// others on its connection
+// circuit opens after FAILURES_TO_OPEN failures in a row or after
+// SLOW_WINDOWS_TO_OPEN slow windows in a row, server then leaves the
+// ring and its keys go to the next server on it, until monitor's probes
+// get through again
+public class BackendHealth {
+
+	// failures in a row that open the circuit
+	public static final int FAILURES_TO_OPEN = 3;
+
+	public static final int SLOW_WINDOWS_TO_OPEN = 2;
+
+	private static final long MIN_WINDOW_ANSWERS = 20;
+
+	private static final double SLOW_RATIO = 0.5;
+
+	private final AtomicInteger failuresInRow = new AtomicInteger();
+
+	// all failures since server (re)joined, read by stats
+	public final AtomicLong failures = new AtomicLong();
+
+	// memcached time in microseconds above which an answer is an outlier,
+	// set by health monitor, 0 until it has seen enough answers
+	public volatile long slowMicros = 0;
+
+	// timed answers and slow ones (failures included) of the current
+	// window
+	private final AtomicLong answers = new AtomicLong();
+	private final AtomicLong slowAnswers = new AtomicLong();
+
+	// slow windows in a row, only health monitor touches it
+	private volatile int slowWindows = 0;
+
+	// clients reported something since the last probe
+	private volatile boolean reported = false;
+
+	// set when server left the ring, its clients answer whatever they
+	// still take with SERVER_ERROR instead of waiting for it
+	public volatile boolean open = false;
+
+	// called for every answered request with its memcached time
+	public void success(long micros) {
+		long slow = this.slowMicros;
+		if (slow > 0) {
+			this.answers.incrementAndGet();
+			if (micros > slow) {
+				this.slowAnswers.incrementAndGet();
+				if (!this.reported) {
+					this.reported = true;
+				}
+				return;
+			}
+		}
+		this.success();
+	}
+
+	// answer that is not timed on its own, flags are only written when
+	// needed
+	public void success() {
+		if (!this.reported) {
+			this.reported = true;
+		}
+		if (this.failuresInRow.get() != 0) {
+			this.failuresInRow.set(0);
+		}
+	}
+
+	// a request that failed or timed out is a slow answer of its window
+	// as well
+	public void failure() {
+		if (!this.reported) {
+			this.reported = true;
+		}
+		this.answers.incrementAndGet();
+		this.slowAnswers.incrementAndGet();
+		this.failures.incrementAndGet();
+		this.failuresInRow.incrementAndGet();
+	}
+
+	// answered probe of health monitor, it only shows that the server is
+	// up, so it clears failures only when clients have not reported
+	// anything since the previous probe
+	public void probed() {
+		if (this.reported) {
+			this.reported = false;
+			return;
+		}
+		if (this.failuresInRow.get() != 0) {
+			this.failuresInRow.set(0);
+		}
+	}
+
+	// called by health monitor every second, ends the window if it has
+	// enough answers, true if most answers so far were slow
+	public boolean endWindow() {
+		long n = this.answers.get();
+		long slow = this.slowAnswers.get();
+		boolean slowWindow = slow > n * SLOW_RATIO;
+		// slow server gives few answers, its window just goes on
+		if (n < MIN_WINDOW_ANSWERS) {
+			return slowWindow;
+		}
+		// clients may have counted more answers meanwhile, they stay
+		this.answers.addAndGet(-n);
+		this.slowAnswers.addAndGet(-slow);
+		this.slowWindows = slowWindow ? this.slowWindows + 1 : 0;
+		return slowWindow;
+	}
+
+	public boolean tripped() {
+		return this.failuresInRow.get() >= FAILURES_TO_OPEN
+				|| this.slowWindows >= SLOW_WINDOWS_TO_OPEN;
+	}
+}
@@ -0,0 +1,629 @@
+package ch.ethz.asltest;
+
+import java.nio.ByteBuffer;
+
+// memcached binary protocol, every frame is a 24 byte header followed by
+// extras, key and value, lengths are in the header so frames are cut
+// without looking at their content, and responses carry the opaque of
+// their request
+// inside the middleware requests and responses stay text, so frames of
+// binary clients are turned into text commands when they come in and
+// their text responses into frames when they go out, and clients of
+// memcached in binary mode (-b) do the same at the other end, routing
+// takes opcode and key of a frame from its header though
+public class BinaryProtocol {
+
+	public static final int HEADER_LENGTH = 24;
+
+	public static final byte REQUEST = (byte) 0x80;
+	public static final byte RESPONSE = (byte) 0x81;
+
+	public static final byte GET = 0x00;
+	public static final byte SET = 0x01;
+	public static final byte ADD = 0x02;
+	public static final byte REPLACE = 0x03;
+	public static final byte DELETE = 0x04;
+	public static final byte GETQ = 0x09;
+	public static final byte NOOP = 0x0a;
+	public static final byte GETK = 0x0c;
+	public static final byte GETKQ = 0x0d;
+	public static final byte APPEND = 0x0e;
+	public static final byte PREPEND = 0x0f;
+	public static final byte SETQ = 0x11;
+	public static final byte ADDQ = 0x12;
+	public static final byte REPLACEQ = 0x13;
+	public static final byte DELETEQ = 0x14;
+	public static final byte APPENDQ = 0x19;
+	public static final byte PREPENDQ = 0x1a;
+
+	public static final int SUCCESS = 0x0000;
+	public static final int KEY_NOT_FOUND = 0x0001;
+	public static final int KEY_EXISTS = 0x0002;
+	public static final int INVALID_ARGUMENTS = 0x0004;
+	public static final int NOT_STORED = 0x0005;
+	public static final int UNKNOWN_COMMAND = 0x0081;
+	public static final int INTERNAL_ERROR = 0x0084;
+
+	// longest key memcached accepts
+	private static final int MAX_KEY_LENGTH = 250;
+
+	// longest body a request frame of a client may have, largest data
+	// block of text commands with its key and extras, frames that claim
+	// more are not buffered, their connection is dropped
+	public static final int MAX_REQUEST_BODY = RequestParser.MAX_DATA_LENGTH
+			+ MAX_KEY_LENGTH + 8;
+
+	// names of text commands frames are turned into
+	private static final byte[] GET_COMMAND = "get".getBytes();
+	private static final byte[] DELETE_COMMAND = "delete".getBytes();
+	private static final byte[] SET_COMMAND = "set".getBytes();
+	private static final byte[] ADD_COMMAND = "add".getBytes();
+	private static final byte[] REPLACE_COMMAND = "replace".getBytes();
+	private static final byte[] CAS_COMMAND = "cas".getBytes();
+	private static final byte[] APPEND_COMMAND = "append".getBytes();
+	private static final byte[] PREPEND_COMMAND = "prepend".getBytes();
+
+	private static final byte[] NOT_FOUND_MESSAGE = "Not found".getBytes();
+
+	private BinaryProtocol() {
+	}
+
+	// header fields of frame starting at offset
+
+	public static byte opcode(ByteBuffer frame, int offset) {
+		return frame.get(offset + 1);
+	}
+
+	public static int keyLength(ByteBuffer frame, int offset) {
+		return frame.getShort(offset + 2) & 0xffff;
+	}
+
+	public static int extrasLength(ByteBuffer frame, int offset) {
+		return frame.get(offset + 4) & 0xff;
+	}
+
+	public static int status(ByteBuffer frame, int offset) {
+		return frame.getShort(offset + 6) & 0xffff;
+	}
+
+	public static int bodyLength(ByteBuffer frame, int offset) {
+		return frame.getInt(offset + 8);
+	}
+
+	public static int opaque(ByteBuffer frame, int offset) {
+		return frame.getInt(offset + 12);
+	}
+
+	public static long cas(ByteBuffer frame, int offset) {
+		return frame.getLong(offset + 16);
+	}
+
+	// offset right after the frame starting at offset, or -1 if bytes up
+	// to limit do not hold the whole frame yet
+	public static int end(ByteBuffer frame, int offset, int limit) {
+		if (limit - offset < HEADER_LENGTH) {
+			return -1;
+		}
+		long end = (long) offset + HEADER_LENGTH
+				+ (bodyLength(frame, offset) & 0xffffffffL);
+		return end > limit ? -1 : (int) end;
+	}
+
+	// ---------------------------------------------------------------
+	// binary clients of the middleware
+	// ---------------------------------------------------------------
+
+	// true for opcodes of a GET, their frames are routed like text GETs
+	public static boolean isGet(int opcode) {
+		return opcode == GET || opcode == GETQ || opcode == GETK
+				|| opcode == GETKQ;
+	}
+
+	// name of text command for request frame starting at offset, its key
+	// follows the name and one space, null if the opcode has none
+	public static byte[] commandName(ByteBuffer frame, int offset) {
+		byte opcode = opcode(frame, offset);
+		switch (opcode) {
+		case GET:
+		case GETQ:
+		case GETK:
+		case GETKQ:
+			return GET_COMMAND;
+		case DELETE:
+		case DELETEQ:
+			return DELETE_COMMAND;
+		case ADD:
+		case ADDQ:
+			return ADD_COMMAND;
+		case SET:
+		case SETQ:
+		case REPLACE:
+		case REPLACEQ:
+			// text protocol has only one compare and swap command
+			if (cas(frame, offset) != 0) {
+				return CAS_COMMAND;
+			}
+			return opcode == SET || opcode == SETQ ? SET_COMMAND
+					: REPLACE_COMMAND;
+		case APPEND:
+		case APPENDQ:
+			return APPEND_COMMAND;
+		case PREPEND:
+		case PREPENDQ:
+			return PREPEND_COMMAND;
+		default:
+			return null;
+		}
+	}
+
+	// text command for request frame starting at offset, or null if
+	// middleware answers the frame itself with directStatus()
+	public static ByteBuffer toText(ByteBuffer frame, int offset,
+			BufferPool bufferPool) {
+		byte[] name = commandName(frame, offset);
+		int extrasLength = extrasLength(frame, offset);
+		int keyLength = keyLength(frame, offset);
+		int keyStart = offset + HEADER_LENGTH + extrasLength;
+		int valueLength = bodyLength(frame, offset) - extrasLength - keyLength;
+		if (name == null || valueLength < 0
+				|| !isValidKey(frame, keyStart, keyLength)) {
+			return null;
+		}
+
+		if (name == GET_COMMAND || name == DELETE_COMMAND) {
+			return command(name, frame, keyStart, keyLength, bufferPool);
+		}
+		if (name == APPEND_COMMAND || name == PREPEND_COMMAND) {
+			if (extrasLength != 0) {
+				return null;
+			}
+			return storage(name, frame, keyStart, keyLength, 0, 0, keyStart
+					+ keyLength, valueLength, -1, bufferPool);
+		}
+		if (extrasLength != 8) {
+			return null;
+		}
+		return storage(name, frame, keyStart, keyLength,
+				frame.getInt(offset + HEADER_LENGTH) & 0xffffffffL,
+				frame.getInt(offset + HEADER_LENGTH + 4) & 0xffffffffL,
+				keyStart + keyLength, valueLength,
+				name == CAS_COMMAND ? cas(frame, offset) : -1, bufferPool);
+	}
+
+	// status of response to a frame toText() did not turn into a command
+	public static int directStatus(ByteBuffer frame, int offset) {
+		switch (opcode(frame, offset)) {
+		case NOOP:
+			return SUCCESS;
+		case GET:
+		case GETQ:
+		case GETK:
+		case GETKQ:
+		case DELETE:
+		case DELETEQ:
+		case SET:
+		case SETQ:
+		case ADD:
+		case ADDQ:
+		case REPLACE:
+		case REPLACEQ:
+		case APPEND:
+		case APPENDQ:
+		case PREPEND:
+		case PREPENDQ:
+			return INVALID_ARGUMENTS;
+		default:
+			return UNKNOWN_COMMAND;
+		}
+	}
+
+	// response frame without body
+	public static ByteBuffer response(int opcode, int opaque, int status,
+			BufferPool bufferPool) {
+		ByteBuffer response = bufferPool.acquire(HEADER_LENGTH);
+		header(response, RESPONSE, (byte) opcode, 0, 0, status, 0, opaque, 0);
+		response.flip();
+		return response;
+	}
+
+	// turns text response to request of a binary client into its frame,
+	// quiet commands that succeeded (and quiet GETs that missed) get an
+	// empty buffer, nothing is written for them
+	public static ByteBuffer toBinary(Message request, ByteBuffer text,
+			BufferPool bufferPool) {
+		byte opcode = (byte) request.opcode;
+		int start = text.position();
+		int lineEnd = GetResponse.lineEnd(text, start, text.limit());
+		if (lineEnd == -1) {
+			lineEnd = text.limit();
+		}
+
+		if (opcode == GET || opcode == GETQ || opcode == GETK
+				|| opcode == GETKQ) {
+			boolean withKey = opcode == GETK || opcode == GETKQ;
+			if (GetResponse.startsWith(text, start, lineEnd, "VALUE ")) {
+				return value(request, text, start, lineEnd, withKey,
+						bufferPool);
+			}
+			if (GetResponse.startsWith(text, start, lineEnd, "END")) {
+				if (opcode == GETQ || opcode == GETKQ) {
+					return empty(bufferPool);
+				}
+				return notFound(request, withKey, bufferPool);
+			}
+			return error(request, INTERNAL_ERROR, text, start, lineEnd,
+					bufferPool);
+		}
+
+		boolean quiet = opcode == SETQ || opcode == ADDQ || opcode == REPLACEQ
+				|| opcode == DELETEQ || opcode == APPENDQ || opcode == PREPENDQ;
+		if (GetResponse.startsWith(text, start, lineEnd, "STORED")
+				|| GetResponse.startsWith(text, start, lineEnd, "DELETED")) {
+			return quiet ? empty(bufferPool) : response(opcode, request.opaque,
+					SUCCESS, bufferPool);
+		}
+		int status;
+		if (GetResponse.startsWith(text, start, lineEnd, "NOT_STORED")) {
+			status = NOT_STORED;
+		} else if (GetResponse.startsWith(text, start, lineEnd, "EXISTS")) {
+			status = KEY_EXISTS;
+		} else if (GetResponse.startsWith(text, start, lineEnd, "NOT_FOUND")) {
+			status = KEY_NOT_FOUND;
+		} else if (GetResponse.startsWith(text, start, lineEnd, "ERROR")) {
+			// asynchronous client answers ERROR when a replica refused
+			// the write, for a delete that is a missing key
+			status = opcode == DELETE || opcode == DELETEQ ? KEY_NOT_FOUND
+					: NOT_STORED;
+		} else {
+			status = INTERNAL_ERROR;
+		}
+		return error(request, status, text, start, lineEnd, bufferPool);
+	}
+
+	// "VALUE <key> <flags> <bytes> [<cas>]" line and its data block
+	private static ByteBuffer value(Message request, ByteBuffer text,
+			int start, int lineEnd, boolean withKey, BufferPool bufferPool) {
+		int keyStart = MessageProcessor.tokenStart(text, start + 5);
+		int keyEnd = MessageProcessor.tokenEnd(text, keyStart);
+		int flagsStart = MessageProcessor.tokenStart(text, keyEnd);
+		int flagsEnd = MessageProcessor.tokenEnd(text, flagsStart);
+		int bytesStart = MessageProcessor.tokenStart(text, flagsEnd);
+		int bytesEnd = MessageProcessor.tokenEnd(text, bytesStart);
+		int casStart = MessageProcessor.tokenStart(text, bytesEnd);
+		long cas = casStart < lineEnd ? number(text, casStart,
+				MessageProcessor.tokenEnd(text, casStart)) : 0;
+		int valueLength = (int) number(text, bytesStart, bytesEnd);
+		int keyLength = withKey ? keyEnd - keyStart : 0;
+
+		ByteBuffer response = bufferPool.acquire(HEADER_LENGTH + 4 + keyLength
+				+ valueLength);
+		header(response, RESPONSE, (byte) request.opcode, keyLength, 4,
+				SUCCESS, 4 + keyLength + valueLength, request.opaque, cas);
+		response.putInt((int) number(text, flagsStart, flagsEnd));
+		copy(response, text, keyStart, keyLength);
+		copy(response, text, lineEnd + 2, valueLength);
+		response.flip();
+		return response;
+	}
+
+	private static ByteBuffer notFound(Message request, boolean withKey,
+			BufferPool bufferPool) {
+		ByteBuffer data = request.data;
+		int keyStart = MessageProcessor.tokenStart(data,
+				MessageProcessor.tokenEnd(data, 0));
+		int keyLength = withKey ? MessageProcessor.tokenEnd(data, keyStart)
+				- keyStart : 0;
+		ByteBuffer response = bufferPool.acquire(HEADER_LENGTH + keyLength
+				+ NOT_FOUND_MESSAGE.length);
+		header(response, RESPONSE, (byte) request.opcode, keyLength, 0,
+				KEY_NOT_FOUND, keyLength + NOT_FOUND_MESSAGE.length,
+				request.opaque, 0);
+		copy(response, data, keyStart, keyLength);
+		response.put(NOT_FOUND_MESSAGE);
+		response.flip();
+		return response;
+	}
+
+	// error status with text of the response line as message,
+	// "SERVER_ERROR " prefix is left out
+	private static ByteBuffer error(Message request, int status,
+			ByteBuffer text, int start, int lineEnd, BufferPool bufferPool) {
+		int messageStart = start;
+		if (GetResponse.startsWith(text, start, lineEnd, "SERVER_ERROR ")) {
+			messageStart += "SERVER_ERROR ".length();
+		}
+		int messageLength = lineEnd - messageStart;
+		ByteBuffer response = bufferPool.acquire(HEADER_LENGTH + messageLength);
+		header(response, RESPONSE, (byte) request.opcode, 0, 0, status,
+				messageLength, request.opaque, 0);
+		copy(response, text, messageStart, messageLength);
+		response.flip();
+		return response;
+	}
+
+	private static ByteBuffer empty(BufferPool bufferPool) {
+		ByteBuffer response = bufferPool.acquire(0);
+		response.flip();
+		return response;
+	}
+
+	// "<name> <key>\r\n"
+	private static ByteBuffer command(byte[] name, ByteBuffer frame,
+			int keyStart, int keyLength, BufferPool bufferPool) {
+		ByteBuffer command = bufferPool.acquire(name.length + 1 + keyLength
+				+ 2);
+		command.put(name);
+		command.put((byte) ' ');
+		copy(command, frame, keyStart, keyLength);
+		command.put((byte) '\r').put((byte) '\n');
+		command.flip();
+		return command;
+	}
+
+	// "<name> <key> <flags> <exptime> <bytes> [<cas>]\r\n<data>\r\n",
+	// cas is -1 if there is none
+	private static ByteBuffer storage(byte[] name, ByteBuffer frame,
+			int keyStart, int keyLength, long flags, long exptime,
+			int valueStart, int valueLength, long cas, BufferPool bufferPool) {
+		// every number takes at most 20 digits
+		ByteBuffer command = bufferPool.acquire(name.length + keyLength + 4
+				* 21 + 4 + valueLength + 2);
+		command.put(name);
+		command.put((byte) ' ');
+		copy(command, frame, keyStart, keyLength);
+		command.put((byte) ' ');
+		digits(command, flags);
+		command.put((byte) ' ');
+		digits(command, exptime);
+		command.put((byte) ' ');
+		digits(command, valueLength);
+		if (cas != -1) {
+			command.put((byte) ' ');
+			digits(command, cas);
+		}
+		command.put((byte) '\r').put((byte) '\n');
+		copy(command, frame, valueStart, valueLength);
+		command.put((byte) '\r').put((byte) '\n');
+		command.flip();
+		return command;
+	}
+
+	// text protocol cannot carry keys with spaces or line breaks
+	private static boolean isValidKey(ByteBuffer frame, int keyStart,
+			int keyLength) {
+		if (keyLength == 0 || keyLength > MAX_KEY_LENGTH) {
+			return false;
+		}
+		for (int i = keyStart; i < keyStart + keyLength; i++) {
+			byte b = frame.get(i);
+			if (b == ' ' || b == '\r' || b == '\n' || b == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// ---------------------------------------------------------------
+	// clients of memcached in binary mode
+	// ---------------------------------------------------------------
+
+	// quiet frame of a text write, memcached answers it only if it fails,
+	// returns null if command has no binary equal (incr, touch, ...)
+	public static ByteBuffer encodeWrite(ByteBuffer text, int opaque,
+			BufferPool bufferPool) {
+		int lineEnd = MessageProcessor.lineEnd(text);
+		int commandEnd = MessageProcessor.tokenEnd(text, 0);
+		int keyStart = MessageProcessor.tokenStart(text, commandEnd);
+		int keyEnd = MessageProcessor.tokenEnd(text, keyStart);
+		int keyLength = keyEnd - keyStart;
+		if (keyLength == 0) {
+			return null;
+		}
+
+		if (GetResponse.startsWith(text, 0, commandEnd, "delete")) {
+			ByteBuffer frame = bufferPool.acquire(HEADER_LENGTH + keyLength);
+			header(frame, REQUEST, DELETEQ, keyLength, 0, 0, keyLength, opaque,
+					0);
+			copy(frame, text, keyStart, keyLength);
+			frame.flip();
+			return frame;
+		}
+
+		byte opcode;
+		boolean withExtras = true;
+		if (commandEnd == 3 && GetResponse.startsWith(text, 0, 3, "set")) {
+			opcode = SETQ;
+		} else if (commandEnd == 3 && GetResponse.startsWith(text, 0, 3, "add")) {
+			opcode = ADDQ;
+		} else if (commandEnd == 3 && GetResponse.startsWith(text, 0, 3, "cas")) {
+			opcode = SETQ;
+		} else if (GetResponse.startsWith(text, 0, commandEnd, "replace")) {
+			opcode = REPLACEQ;
+		} else if (GetResponse.startsWith(text, 0, commandEnd, "append")) {
+			opcode = APPENDQ;
+			withExtras = false;
+		} else if (GetResponse.startsWith(text, 0, commandEnd, "prepend")) {
+			opcode = PREPENDQ;
+			withExtras = false;
+		} else {
+			return null;
+		}
+
+		// "<key> <flags> <exptime> <bytes> [<cas>] [noreply]"
+		int[] tokens = new int[8];
+		int numTokens = 0;
+		int i = keyEnd;
+		while (numTokens < tokens.length) {
+			int tokenStart = MessageProcessor.tokenStart(text, i);
+			if (tokenStart >= lineEnd) {
+				break;
+			}
+			i = MessageProcessor.tokenEnd(text, tokenStart);
+			tokens[numTokens++] = tokenStart;
+			tokens[numTokens++] = i;
+		}
+		if (numTokens < 6) {
+			return null;
+		}
+		long flags = number(text, tokens[0], tokens[1]);
+		long exptime = number(text, tokens[2], tokens[3]);
+		long valueLength = number(text, tokens[4], tokens[5]);
+		long cas = 0;
+		if (text.get(0) == 'c') {
+			if (numTokens < 8) {
+				return null;
+			}
+			cas = number(text, tokens[6], tokens[7]);
+		}
+		if (flags < 0 || exptime < 0 || valueLength < 0 || cas < 0
+				|| lineEnd + 2 + valueLength > text.limit()) {
+			return null;
+		}
+
+		int extrasLength = withExtras ? 8 : 0;
+		int bodyLength = extrasLength + keyLength + (int) valueLength;
+		ByteBuffer frame = bufferPool.acquire(HEADER_LENGTH + bodyLength);
+		header(frame, REQUEST, opcode, keyLength, extrasLength, 0, bodyLength,
+				opaque, cas);
+		if (withExtras) {
+			frame.putInt((int) flags);
+			frame.putInt((int) exptime);
+		}
+		copy(frame, text, keyStart, keyLength);
+		copy(frame, text, lineEnd + 2, (int) valueLength);
+		frame.flip();
+		return frame;
+	}
+
+	// frames of a text "get" or "gets", GETKQ for every key but the last
+	// and GETK for the last one, so memcached answers only hits and the
+	// last key, which always ends the response
+	public static ByteBuffer encodeGet(ByteBuffer text, int opaque,
+			BufferPool bufferPool) {
+		int lineEnd = MessageProcessor.lineEnd(text);
+		int first = MessageProcessor.tokenStart(text,
+				MessageProcessor.tokenEnd(text, 0));
+		if (first >= lineEnd) {
+			return null;
+		}
+
+		int length = 0;
+		int keyStart = first;
+		while (keyStart < lineEnd) {
+			int keyEnd = MessageProcessor.tokenEnd(text, keyStart);
+			length += HEADER_LENGTH + keyEnd - keyStart;
+			keyStart = MessageProcessor.tokenStart(text, keyEnd);
+		}
+
+		ByteBuffer frames = bufferPool.acquire(length);
+		keyStart = first;
+		while (keyStart < lineEnd) {
+			int keyEnd = MessageProcessor.tokenEnd(text, keyStart);
+			int next = MessageProcessor.tokenStart(text, keyEnd);
+			header(frames, REQUEST, next < lineEnd ? GETKQ : GETK, keyEnd
+					- keyStart, 0, 0, keyEnd - keyStart, opaque, 0);
+			copy(frames, text, keyStart, keyEnd - keyStart);
+			keyStart = next;
+		}
+		frames.flip();
+		return frames;
+	}
+
+	// NOOP frame, memcached answers it after everything written before
+	public static void noop(ByteBuffer frame, int opaque) {
+		frame.clear();
+		header(frame, REQUEST, NOOP, 0, 0, 0, 0, opaque, 0);
+		frame.flip();
+	}
+
+	// appends "VALUE <key> <flags> <bytes> [<cas>]\r\n<data>\r\n" of a
+	// GETK or GETKQ hit starting at offset to text, text must have room
+	// for valueTextLength() bytes
+	public static void appendValue(ByteBuffer frame, int offset,
+			boolean withCas, ByteBuffer text) {
+		int extrasLength = extrasLength(frame, offset);
+		int keyLength = keyLength(frame, offset);
+		int keyStart = offset + HEADER_LENGTH + extrasLength;
+		int valueLength = bodyLength(frame, offset) - extrasLength - keyLength;
+		long flags = extrasLength >= 4 ? frame.getInt(offset + HEADER_LENGTH)
+				& 0xffffffffL : 0;
+
+		ascii(text, "VALUE ");
+		copy(text, frame, keyStart, keyLength);
+		text.put((byte) ' ');
+		digits(text, flags);
+		text.put((byte) ' ');
+		digits(text, valueLength);
+		if (withCas) {
+			text.put((byte) ' ');
+			digits(text, cas(frame, offset));
+		}
+		text.put((byte) '\r').put((byte) '\n');
+		copy(text, frame, keyStart + keyLength, valueLength);
+		text.put((byte) '\r').put((byte) '\n');
+	}
+
+	// upper bound of bytes appendValue() writes for frame at offset
+	public static int valueTextLength(ByteBuffer frame, int offset) {
+		return 6 + bodyLength(frame, offset) + 3 * 21 + 4;
+	}
+
+	// ---------------------------------------------------------------
+
+	private static void header(ByteBuffer frame, byte magic, byte opcode,
+			int keyLength, int extrasLength, int status, int bodyLength,
+			int opaque, long cas) {
+		frame.put(magic);
+		frame.put(opcode);
+		frame.putShort((short) keyLength);
+		frame.put((byte) extrasLength);
+		frame.put((byte) 0);
+		frame.putShort((short) status);
+		frame.putInt(bodyLength);
+		frame.putInt(opaque);
+		frame.putLong(cas);
+	}
+
+	private static void copy(ByteBuffer to, ByteBuffer from, int start,
+			int length) {
+		ByteBuffer part = from.duplicate();
+		part.limit(start + length);
+		part.position(start);
+		to.put(part);
+	}
+
+	private static void ascii(ByteBuffer to, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			to.put((byte) s.charAt(i));
+		}
+	}
+
+	// decimal digits of a number, negative ones are unsigned 64 bit values
+	// (cas of memcached)
+	private static void digits(ByteBuffer to, long value) {
+		if (value < 0) {
+			ascii(to, Long.toUnsignedString(value));
+			return;
+		}
+		if (value >= 10) {
+			digits(to, value / 10);
+		}
+		to.put((byte) ('0' + value % 10));
+	}
+
+	// non negative decimal number between from and to, -1 if it is not one
+	private static long number(ByteBuffer data, int from, int to) {
+		if (from == to || to - from > 19) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = from; i < to; i++) {
+			byte b = data.get(i);
+			if (b < '0' || b > '9') {
+				return -1;
+			}
+			value = value * 10 + b - '0';
+		}
+		return value;
+	}
+}
@@ -0,0 +1,77 @@
+package ch.ethz.asltest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// shared pool of reusable direct buffers for requests and responses
+// buffer is taken with acquire() and has to be given back with release()
+// once nobody reads from it anymore, so in steady state we allocate
+// (almost) nothing on the hot path
+public class BufferPool {
+
+	// capacities of size classes, request gets the smallest class it fits in
+	private static final int[] SIZE_CLASSES = { 512, 2048, 8192, 65536 };
+
+	// every size class keeps at most this many bytes of free buffers,
+	// everything above that is left to garbage collector
+	private static final int MAX_FREE_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+	// free buffers for each size class, ArrayBlockingQueue does not
+	// allocate anything on offer() and poll()
+	private List<BlockingQueue<ByteBuffer>> free;
+
+	public BufferPool() {
+		this.free = new ArrayList<BlockingQueue<ByteBuffer>>();
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			this.free.add(new ArrayBlockingQueue<ByteBuffer>(
+					MAX_FREE_BYTES_PER_CLASS / SIZE_CLASSES[i]));
+		}
+	}
+
+	// returns cleared buffer with capacity of at least size bytes
+	public ByteBuffer acquire(int size) {
+		int sizeClass = this.sizeClassOf(size);
+		if (sizeClass == -1) {
+			// too big to pool, such requests are rare
+			return ByteBuffer.allocate(size);
+		}
+		ByteBuffer buffer = this.free.get(sizeClass).poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	// puts buffer back to its size class, caller must not touch it afterwards
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+		int sizeClass = this.sizeClassOf(buffer.capacity());
+		if (sizeClass != -1 && SIZE_CLASSES[sizeClass] == buffer.capacity()) {
+			// if class is full, buffer is simply dropped
+			this.free.get(sizeClass).offer(buffer);
+		}
+	}
+
+	// copies bytes into a buffer from the pool, buffer is ready to be read
+	public ByteBuffer wrap(byte[] data) {
+		ByteBuffer buffer = this.acquire(data.length);
+		buffer.put(data);
+		buffer.flip();
+		return buffer;
+	}
+
+	private int sizeClassOf(int size) {
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			if (size <= SIZE_CLASSES[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
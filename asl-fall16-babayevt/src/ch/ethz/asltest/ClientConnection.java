@@ -0,0 +1,37 @@
+package ch.ethz.asltest;
+
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// state of one memaslap connection, it is attached to the selection key
+// and only touched by the selector thread owning the connection, except
+// for flushScheduled which clients of memcached flip when they respond
+public class ClientConnection {
+
+	// at most this many pipelined requests of one connection are
+	// processed at the same time, the rest waits in the parser
+	public static final int MAX_PIPELINED = 128;
+
+	// key of the connection in selector of its mwServer
+	public SelectionKey key;
+
+	// cuts incoming bytes into commands
+	public RequestParser parser;
+
+	// requests in the order they came, memcached protocol has no ids
+	// so responses must be written back in the same order
+	public ArrayDeque<Message> requests = new ArrayDeque<Message>();
+
+	// true while connection sits in readyConnections of mwServer, so
+	// many responses arriving at once queue the connection only once
+	public AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	// request that found queue of its server full, while it is set the
+	// connection is not read (pause overload policy)
+	public Message parked;
+
+	public ClientConnection(RequestParser parser) {
+		this.parser = parser;
+	}
+}
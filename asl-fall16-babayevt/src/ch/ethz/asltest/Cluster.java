@@ -0,0 +1,82 @@
+package ch.ethz.asltest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// servers of the middleware and the ring that maps keys to them, a new
+// cluster is built for every membership change and swapped in as a whole,
+// so every request is routed by one consistent view
+public class Cluster {
+
+	// slots of servers are below this, so counters and stats can be
+	// allocated once for any membership
+	public static final int MAX_SERVERS = 64;
+
+	// servers in the order they joined, replicas of a server are the
+	// servers following it in this list
+	public final List<Backend> backends;
+
+	// returns slot of server for a key
+	public final HashRing ring;
+
+	private final Backend[] bySlot = new Backend[MAX_SERVERS];
+
+	// servers holding copies of keys of a server, by slot, server first
+	private final Backend[][] replicasBySlot = new Backend[MAX_SERVERS][];
+
+	public Cluster(List<Backend> backends, int writeToCount,
+			KeyHash hashFunction) {
+		this.backends = Collections.unmodifiableList(new ArrayList<Backend>(
+				backends));
+
+		String[] names = new String[backends.size()];
+		int[] slots = new int[backends.size()];
+		for (int i = 0; i < backends.size(); i++) {
+			Backend backend = backends.get(i);
+			names[i] = backend.nodeName;
+			slots[i] = backend.slot;
+			this.bySlot[backend.slot] = backend;
+		}
+		this.ring = new HashRing(names, slots, 20, hashFunction);
+
+		int numServers = backends.size();
+		int count = Math.min(writeToCount, numServers);
+		for (int i = 0; i < numServers; i++) {
+			Backend[] replicas = new Backend[count];
+			for (int j = 0; j < count; j++) {
+				replicas[j] = backends.get((i + j) % numServers);
+			}
+			this.replicasBySlot[backends.get(i).slot] = replicas;
+		}
+	}
+
+	public Backend get(int slot) {
+		return this.bySlot[slot];
+	}
+
+	// server with given "host:port", or null
+	public Backend find(String name) {
+		for (int i = 0; i < this.backends.size(); i++) {
+			if (this.backends.get(i).name().equals(name)) {
+				return this.backends.get(i);
+			}
+		}
+		return null;
+	}
+
+	// servers a write of backend goes to, backend first
+	public Backend[] replicasOf(Backend backend) {
+		return this.replicasBySlot[backend.slot];
+	}
+
+	// same as "host:port"
+	public String[] replicaNames(Backend backend) {
+		Backend[] replicas = this.replicasOf(backend);
+		String[] names = new String[replicas.length];
+		for (int i = 0; i < replicas.length; i++) {
+			names[i] = replicas[i].name();
+		}
+		return names;
+	}
+}
@@ -0,0 +1,125 @@
+package ch.ethz.asltest;
+
+import java.nio.ByteBuffer;
+
+// helper methods to find where one memcached response to a GET request
+// ends, response is any number of "VALUE <key> <flags> <bytes> [<cas>]"
+// lines each followed by a data block, and then "END", or a single
+// ERROR, CLIENT_ERROR or SERVER_ERROR line
+public class GetResponse {
+
+	public static final byte[] END = "END\r\n".getBytes();
+
+	private GetResponse() {
+	}
+
+	// returns offset right after the complete response that starts at
+	// offset, or -1 if bytes up to limit do not hold the whole response yet
+	public static int end(ByteBuffer buffer, int offset, int limit) {
+		int position = offset;
+		while (true) {
+			int lineEnd = lineEnd(buffer, position, limit);
+			if (lineEnd == -1) {
+				return -1;
+			}
+			if (startsWith(buffer, position, lineEnd, "VALUE ")) {
+				int bytes = valueLength(buffer, position, lineEnd);
+				if (bytes < 0) {
+					// broken header, treat the line as the whole response
+					return lineEnd + 2;
+				}
+				position = lineEnd + 2 + bytes + 2;
+				if (position > limit) {
+					return -1;
+				}
+			} else {
+				// END or one of error lines finishes the response
+				return lineEnd + 2;
+			}
+		}
+	}
+
+	// bytes the response starting at offset takes at least, as far as
+	// VALUE lines up to limit tell, so a buffer for a big value can grow
+	// to its size in one step, -1 if the first incomplete line is not
+	// known yet
+	public static int minimumLength(ByteBuffer buffer, int offset, int limit) {
+		int position = offset;
+		while (true) {
+			int lineEnd = lineEnd(buffer, position, limit);
+			if (lineEnd == -1 || !startsWith(buffer, position, lineEnd, "VALUE ")) {
+				return position == offset ? -1 : position - offset + END.length;
+			}
+			int bytes = valueLength(buffer, position, lineEnd);
+			if (bytes < 0) {
+				return -1;
+			}
+			position = lineEnd + 2 + bytes + 2;
+			if (position > limit) {
+				// at least END follows the value
+				return position - offset + END.length;
+			}
+		}
+	}
+
+	// true if response starting at offset holds no value (it is END
+	// or an error), memaslap counts such GET as unsuccessful
+	public static boolean isMiss(ByteBuffer buffer, int offset) {
+		return buffer.get(offset) != 'V';
+	}
+
+	// position of "\r" of the first "\r\n" between offset and limit
+	static int lineEnd(ByteBuffer buffer, int offset, int limit) {
+		for (int i = offset; i < limit - 1; i++) {
+			if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static boolean startsWith(ByteBuffer buffer, int offset, int limit,
+			String prefix) {
+		if (limit - offset < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buffer.get(offset + i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// <bytes> is 4th token of VALUE line, -1 if it is malformed
+	static int valueLength(ByteBuffer buffer, int offset, int lineEnd) {
+		int token = 0;
+		int i = offset;
+		while (i < lineEnd) {
+			while (i < lineEnd && buffer.get(i) == ' ') {
+				i++;
+			}
+			if (i == lineEnd) {
+				break;
+			}
+			if (token == 3) {
+				int bytes = 0;
+				int digits = 0;
+				while (i < lineEnd && buffer.get(i) != ' ') {
+					byte b = buffer.get(i++);
+					if (b < '0' || b > '9' || digits == 9) {
+						return -1;
+					}
+					bytes = bytes * 10 + (b - '0');
+					digits++;
+				}
+				return bytes;
+			}
+			while (i < lineEnd && buffer.get(i) != ' ') {
+				i++;
+			}
+			token++;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,130 @@
+package ch.ethz.asltest;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+// consistent hashing circle that replaced MD5Circle
+// virtual nodes are kept as sorted primitive longs with owner server id
+// next to them, lookup is a binary search that allocates nothing, and
+// since arrays never change after construction many routing threads
+// can use the same ring at once
+// every server has its own node name and positions of its virtual nodes
+// depend only on that name, so when a server joins or leaves a new ring
+// is built and only keys of its arcs move
+public class HashRing {
+
+	// we have 7 random strings to promote uniform
+	// positioning of virtual nodes (same as in MD5Circle)
+	private static final String[] NODES = { "8QAYsEvF", "Hjh3-bAd",
+			"1XB7Nm7n", "5fP12bRi", "TdMJnpl3", "GdIi-wGJ", "a37pGaKH" };
+
+	private final KeyHash hashFunction;
+
+	// positions of virtual nodes, sorted as unsigned values but stored with
+	// flipped sign bit, so that plain signed comparison can be used
+	private final long[] points;
+
+	// owners[i] is id of memcached server owning points[i]
+	private final int[] owners;
+
+	// server with id servers[i] gets virtual nodes named names[i] + j
+	public HashRing(String[] names, int[] servers, int numberOfReplicas,
+			KeyHash hashFunction) {
+		this.hashFunction = hashFunction;
+
+		int numServers = names.length;
+		int numPoints = numServers * numberOfReplicas;
+		final long[] unsorted = new long[numPoints];
+		int[] unsortedOwners = new int[numPoints];
+		for (int i = 0; i < numServers; i++) {
+			for (int j = 0; j < numberOfReplicas; j++) {
+				byte[] node = (names[i] + j).getBytes();
+				unsorted[i * numberOfReplicas + j] = this.hash(
+						ByteBuffer.wrap(node), 0, node.length);
+				unsortedOwners[i * numberOfReplicas + j] = servers[i];
+			}
+		}
+
+		// sort points together with their owners, on equal positions
+		// the server added later wins, as it did in TreeMap of MD5Circle
+		Integer[] order = new Integer[numPoints];
+		for (int i = 0; i < numPoints; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				if (unsorted[a] != unsorted[b]) {
+					return Long.compare(unsorted[a], unsorted[b]);
+				}
+				return Integer.compare(a, b);
+			}
+		});
+
+		long[] sorted = new long[numPoints];
+		int[] sortedOwners = new int[numPoints];
+		int size = 0;
+		for (int i = 0; i < numPoints; i++) {
+			long point = unsorted[order[i]];
+			if (size > 0 && sorted[size - 1] == point) {
+				size--;
+			}
+			sorted[size] = point;
+			sortedOwners[size] = unsortedOwners[order[i]];
+			size++;
+		}
+		this.points = Arrays.copyOf(sorted, size);
+		this.owners = Arrays.copyOf(sortedOwners, size);
+	}
+
+	// node name of server given on command line at position, first 7
+	// servers keep names of MD5Circle so keys stay where they were, any
+	// other server is named by its address
+	public static String nodeName(int position, String address) {
+		if (position < NODES.length) {
+			return NODES[position];
+		}
+		return address;
+	}
+
+	// returns hash function for name given on command line,
+	// or null if we do not know it
+	public static KeyHash hashFunction(String name)
+			throws NoSuchAlgorithmException {
+		if (name.equals("md5")) {
+			return new Md5Hash();
+		} else if (name.equals("murmur3")) {
+			return new Murmur3Hash();
+		}
+		return null;
+	}
+
+	// returns id of memcached server owning the key, that is owner of
+	// first virtual node at or after hash of the key, if there is no such
+	// node we reached end of the circle and take its first node
+	public int get(ByteBuffer data, int offset, int length) {
+		long hash = this.hash(data, offset, length);
+
+		int low = 0;
+		int high = this.points.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.points[middle] < hash) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return this.owners[low == this.points.length ? 0 : low];
+	}
+
+	public int get(byte[] key) {
+		return this.get(ByteBuffer.wrap(key), 0, key.length);
+	}
+
+	// hash of the key moved to signed order of our points
+	private long hash(ByteBuffer data, int offset, int length) {
+		return this.hashFunction.hash(data, offset, length) ^ Long.MIN_VALUE;
+	}
+}
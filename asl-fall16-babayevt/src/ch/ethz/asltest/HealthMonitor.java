@@ -0,0 +1,204 @@
+package ch.ethz.asltest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// one thread of this class watches all memcached servers when backend
+// timeout is set (-x), every PROBE_INTERVAL it sends "version" to each
+// of them on a connection of its own, a probe that is not answered within
+// the timeout is a failure like a timed out request of a client
+// server whose circuit opened (see BackendHealth) is failed over by
+// messageProcessor, its probes go on and after PROBES_TO_CLOSE answered
+// ones in a row it gets its place on the ring back with new clients,
+// after it was flushed: a server that stalled rather than restarted
+// still holds values that were overwritten or deleted on the next server
+// meanwhile, so it comes back empty, and stays down if flush fails
+// every UPDATE_INTERVAL ends a window of slow answers (see BackendHealth)
+// and each server gets a new limit for them, SLOW_FACTOR times
+// SLOW_PERCENTILE of its recent memcached times, but not below
+// 1 / SLOW_FACTOR of the timeout, a short stall of a busy server makes
+// all its answers in flight slow and is no failure, the limit is kept
+// after a slow window, so a server that stays slow does not raise it
+public class HealthMonitor implements Runnable {
+
+	// milliseconds between two rounds of probes
+	private static final long PROBE_INTERVAL = 100;
+
+	// nanoseconds between two updates of slow answer limits
+	private static final long UPDATE_INTERVAL = 1000000000L;
+
+	private static final double SLOW_PERCENTILE = 99;
+
+	private static final long SLOW_FACTOR = 4;
+
+	// answered probes in a row that bring a failed over server back
+	private static final int PROBES_TO_CLOSE = 3;
+
+	private static final byte[] VERSION = "version\r\n".getBytes();
+
+	private static final byte[] FLUSH_ALL = "flush_all\r\n".getBytes();
+
+	private MessageProcessor messageProcessor;
+
+	private int timeoutMillis;
+
+	// GET memcached times of every server
+	private SlotPercentiles getTimes;
+
+	private long nextUpdate = 0;
+
+	// probe connections by "host:port", kept while they work
+	private Map<String, Socket> probes = new HashMap<String, Socket>();
+
+	// answered probes in a row of failed over servers
+	private Map<String, Integer> answered = new HashMap<String, Integer>();
+
+	public HealthMonitor(MessageProcessor messageProcessor,
+			List<LatencyStats> stats, int timeoutMillis) {
+		this.messageProcessor = messageProcessor;
+		this.timeoutMillis = timeoutMillis;
+		this.getTimes = new SlotPercentiles(stats, LatencyStats.GET, 2,
+				SLOW_PERCENTILE);
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(PROBE_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long now = System.nanoTime();
+			boolean update = now >= this.nextUpdate;
+			if (update) {
+				this.getTimes.update();
+				this.nextUpdate = now + UPDATE_INTERVAL;
+			}
+
+			Set<String> probed = new HashSet<String>();
+			for (Backend backend : this.messageProcessor.cluster().backends) {
+				probed.add(backend.name());
+				if (update && !backend.health.endWindow()) {
+					long percentile = this.getTimes.get(backend.slot);
+					backend.health.slowMicros = percentile == 0 ? 0 : Math.max(
+							SLOW_FACTOR * percentile, this.timeoutMillis
+									* 1000L / SLOW_FACTOR);
+				}
+				if (this.probe(backend)) {
+					backend.health.probed();
+				} else {
+					backend.health.failure();
+				}
+				// clients may have tripped it between our probes as well
+				if (backend.health.tripped()) {
+					try {
+						this.messageProcessor.failOver(backend);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+
+			for (Backend backend : this.messageProcessor.downServers()) {
+				String name = backend.name();
+				probed.add(name);
+				if (!this.probe(backend)) {
+					this.answered.remove(name);
+					continue;
+				}
+				Integer count = this.answered.get(name);
+				int n = count == null ? 1 : count + 1;
+				if (n < PROBES_TO_CLOSE) {
+					this.answered.put(name, n);
+					continue;
+				}
+				this.answered.remove(name);
+				if (!this.flush(backend)) {
+					continue;
+				}
+				try {
+					this.messageProcessor.recover(backend);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+
+			// servers removed with "cluster remove" are not probed anymore
+			Iterator<String> names = this.probes.keySet().iterator();
+			while (names.hasNext()) {
+				String name = names.next();
+				if (!probed.contains(name)) {
+					this.close(this.probes.get(name));
+					names.remove();
+				}
+			}
+		}
+	}
+
+	// true if server answered "version" in time
+	private boolean probe(Backend backend) {
+		String name = backend.name();
+		Socket socket = this.probes.get(name);
+		try {
+			if (socket == null) {
+				socket = new Socket();
+				this.probes.put(name, socket);
+				socket.connect(new InetSocketAddress(backend.address,
+						backend.port), this.timeoutMillis);
+				socket.setSoTimeout(this.timeoutMillis);
+				socket.setTcpNoDelay(true);
+			}
+			socket.getOutputStream().write(VERSION);
+			String line = Streams.readLine(socket.getInputStream());
+			if (line != null && line.startsWith("VERSION")) {
+				return true;
+			}
+		} catch (IOException e) {
+			// refused, timed out or broken, next probe connects again
+		}
+		// late answer would be read by the next probe, so connection
+		// is not used again
+		this.close(socket);
+		this.probes.remove(name);
+		return false;
+	}
+
+	// true if server emptied itself, it is asked on a fresh connection,
+	// so no late answer of a probe is taken for the answer
+	private boolean flush(Backend backend) {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(backend.address,
+					backend.port), this.timeoutMillis);
+			socket.setSoTimeout(this.timeoutMillis);
+			socket.getOutputStream().write(FLUSH_ALL);
+			String line = Streams.readLine(socket.getInputStream());
+			if (line != null && line.startsWith("OK")) {
+				return true;
+			}
+			System.err.println("flush of " + backend.name()
+					+ " failed: " + line);
+		} catch (IOException e) {
+			System.err.println("flush of " + backend.name() + " failed: "
+					+ e);
+		} finally {
+			this.close(socket);
+		}
+		return false;
+	}
+
+	private void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+}
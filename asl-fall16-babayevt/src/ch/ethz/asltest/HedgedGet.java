@@ -0,0 +1,122 @@
+package ch.ethz.asltest;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// GET of a replicated key that may be sent twice, hedger sends a
+// duplicate to the next replica when the first server takes too long,
+// whichever of them answers first wins and the other response is dropped,
+// but a duplicate wins only with a hit: its error or miss may just come
+// from a replica that is failing or behind, while the request is about
+// to get the value
+// the duplicate reads the same command through its own view of the
+// buffer, so once there is a duplicate nobody knows when both clients
+// are done with the command, and its buffer is left to GC instead of
+// going back to the pool, that happens for a few percent of GETs at most
+public class HedgedGet {
+
+	private static final byte[] VALUE = "VALUE ".getBytes();
+
+	// original request of memaslap client
+	public final Message request;
+
+	// replica set of the key and index of the server request went to,
+	// duplicate goes to the one after it
+	public final Backend[] replicas;
+	public final int sentTo;
+
+	// nanoTime when request was queued
+	public final long startedAt;
+
+	private BufferPool bufferPool;
+
+	private Hedger hedger;
+
+	private AtomicBoolean done = new AtomicBoolean(false);
+
+	// set before the duplicate takes its view of the command
+	private volatile boolean duplicated = false;
+
+	// request whose response went to the client, its times are recorded
+	private volatile Message winner;
+
+	public HedgedGet(Message request, Backend[] replicas, int sentTo,
+			BufferPool bufferPool, Hedger hedger) {
+		this.request = request;
+		this.replicas = replicas;
+		this.sentTo = sentTo;
+		this.startedAt = request.queueTime;
+		this.bufferPool = bufferPool;
+		this.hedger = hedger;
+	}
+
+	public boolean isDone() {
+		return this.done.get();
+	}
+
+	public boolean isDuplicated() {
+		return this.duplicated;
+	}
+
+	public Message winner() {
+		return this.winner;
+	}
+
+	// copy of request for the next replica, or null if request was
+	// answered meanwhile, flag is set before answer is checked and
+	// mwServer looks at the flag only after the answer, so either we see
+	// the answer or the command buffer is not released
+	public Message duplicate(Backend target) {
+		this.duplicated = true;
+		ByteBuffer data = this.request.data;
+		if (this.done.get()) {
+			return null;
+		}
+		Message duplicate = new Message(this.request.server,
+				this.request.connection, data.duplicate());
+		duplicate.hedge = this;
+		duplicate.queueTime = System.nanoTime();
+		duplicate.deadline = this.request.deadline;
+		duplicate.backend = target.slot;
+		return duplicate;
+	}
+
+	// called with the response of request or of its duplicate, true if
+	// it is the request's own response and it goes to the client as
+	// usual, a winning duplicate hands its response over to the request
+	public boolean answer(Message from, ByteBuffer response) {
+		if (from != this.request && !(from.successFlag && isHit(response))) {
+			// race is left to the request
+			this.bufferPool.release(response);
+			return false;
+		}
+		if (!this.done.compareAndSet(false, true)) {
+			// the other one was faster
+			this.bufferPool.release(response);
+			return false;
+		}
+		this.winner = from;
+		if (from == this.request) {
+			return true;
+		}
+		this.hedger.wins.incrementAndGet();
+		// waiting identical GETs take success of their leader
+		this.request.successFlag = from.successFlag;
+		this.request.deliver(response);
+		return false;
+	}
+
+	// text response of a GET starts with a VALUE block on a hit
+	private static boolean isHit(ByteBuffer response) {
+		int start = response.position();
+		if (response.limit() - start < VALUE.length) {
+			return false;
+		}
+		for (int i = 0; i < VALUE.length; i++) {
+			if (response.get(start + i) != VALUE[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,144 @@
+package ch.ethz.asltest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// one thread of this class sends duplicates of slow GETs of replicated
+// keys (-d), a GET still unanswered after the given percentile of GET
+// response times of its server goes once more to the next replica
+// percentiles come from latency stats of the selector threads, they are
+// updated every UPDATE_INTERVAL (see SlotPercentiles)
+// GETs wait in one FIFO per server, all of a server's GETs have the same
+// threshold, so only the oldest one has to be looked at
+// duplicates are limited by a budget: every GET earns budget percent of
+// a duplicate and a duplicate is only sent with a whole one saved up
+public class Hedger implements Runnable {
+
+	// nanoseconds between two updates of thresholds
+	private static final long UPDATE_INTERVAL = 1000000000L;
+
+	// duplicates saved up while all GETs are fast, a burst of slow ones
+	// gets no more than these
+	private static final double MAX_SAVED = 10;
+
+	private MessageProcessor messageProcessor;
+
+	// duplicates earned by every GET, budget percent / 100
+	private double budget;
+
+	private double saved = 0;
+
+	// hedged GETs by slot of server they were sent to
+	private List<ConcurrentLinkedQueue<HedgedGet>> pending;
+
+	// microseconds a GET of a server may take before it is hedged, 0
+	// while we have not seen enough GETs of it
+	private SlotPercentiles thresholds;
+
+	private long nextUpdate = 0;
+
+	private volatile Thread thread;
+
+	// true while our thread sleeps, the first GET queued meanwhile wakes
+	// it up, so its due time is seen in time
+	private AtomicBoolean sleeping = new AtomicBoolean(false);
+
+	// read by stats
+	public final AtomicLong hedged = new AtomicLong();
+	public final AtomicLong wins = new AtomicLong();
+	public final AtomicLong overBudget = new AtomicLong();
+
+	public Hedger(MessageProcessor messageProcessor, List<LatencyStats> stats,
+			double percentile, int budgetPercent) {
+		this.messageProcessor = messageProcessor;
+		this.thresholds = new SlotPercentiles(stats, LatencyStats.GET, 0,
+				percentile);
+		this.budget = budgetPercent / 100.0;
+		this.pending = new ArrayList<ConcurrentLinkedQueue<HedgedGet>>();
+		for (int i = 0; i < Cluster.MAX_SERVERS; i++) {
+			this.pending.add(new ConcurrentLinkedQueue<HedgedGet>());
+		}
+	}
+
+	// called by messageProcessor after the GET was queued
+	public void add(HedgedGet get) {
+		this.pending.get(get.replicas[get.sentTo].slot).offer(get);
+		if (this.sleeping.compareAndSet(true, false)) {
+			LockSupport.unpark(this.thread);
+		}
+	}
+
+	public void run() {
+		this.thread = Thread.currentThread();
+		while (true) {
+			long now = System.nanoTime();
+			if (now >= this.nextUpdate) {
+				this.thresholds.update();
+				this.nextUpdate = now + UPDATE_INTERVAL;
+			}
+
+			// flag is set before we look at the queues, so GET that comes
+			// after our look always wakes us up, it may be due before the
+			// ones we know of if its server has a lower threshold
+			this.sleeping.set(true);
+			long next = this.nextUpdate;
+			for (int slot = 0; slot < Cluster.MAX_SERVERS; slot++) {
+				long fireAt = this.hedgeDue(slot, now);
+				if (fireAt != 0) {
+					next = Math.min(next, fireAt);
+				}
+			}
+			LockSupport.parkNanos(next - System.nanoTime());
+			this.sleeping.set(false);
+		}
+	}
+
+	// hedges GETs of server whose time is up, returns when the oldest
+	// remaining one is due, or 0 if there is none
+	private long hedgeDue(int slot, long now) {
+		ConcurrentLinkedQueue<HedgedGet> queue = this.pending.get(slot);
+		HedgedGet get;
+		while ((get = queue.peek()) != null) {
+			long threshold = this.thresholds.get(slot) * 1000;
+			if (!get.isDone() && threshold > 0
+					&& now < get.startedAt + threshold) {
+				return get.startedAt + threshold;
+			}
+			queue.poll();
+			this.saved = Math.min(this.saved + this.budget, MAX_SAVED);
+			if (get.isDone() || threshold == 0) {
+				continue;
+			}
+			if (this.saved < 1) {
+				this.overBudget.incrementAndGet();
+				continue;
+			}
+			if (this.hedge(get)) {
+				this.saved -= 1;
+				this.hedged.incrementAndGet();
+			}
+		}
+		return 0;
+	}
+
+	// sends duplicate to the replica after the one GET went to, unless
+	// that one is gone, failed over or full
+	private boolean hedge(HedgedGet get) {
+		Backend target = get.replicas[(get.sentTo + 1) % get.replicas.length];
+		if (this.messageProcessor.cluster().get(target.slot) != target
+				|| target.health.open
+				|| target.getQueue.remainingCapacity() == 0) {
+			return false;
+		}
+		Message duplicate = get.duplicate(target);
+		if (duplicate == null) {
+			return false;
+		}
+		this.messageProcessor.sendDuplicate(target, duplicate);
+		return true;
+	}
+}
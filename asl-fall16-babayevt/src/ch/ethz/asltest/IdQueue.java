@@ -0,0 +1,46 @@
+package ch.ethz.asltest;
+
+// FIFO of request ids kept in a growing ring of primitive longs, so
+// adding an id does not allocate a Long, used by one thread only
+public class IdQueue {
+
+	private long[] ids = new long[1024];
+
+	private int head = 0;
+
+	private int size = 0;
+
+	public void add(long id) {
+		if (this.size == this.ids.length) {
+			long[] bigger = new long[this.ids.length * 2];
+			for (int i = 0; i < this.size; i++) {
+				bigger[i] = this.ids[(this.head + i) % this.ids.length];
+			}
+			this.ids = bigger;
+			this.head = 0;
+		}
+		this.ids[(this.head + this.size) % this.ids.length] = id;
+		this.size++;
+	}
+
+	// removes and returns the oldest id, queue must not be empty
+	public long poll() {
+		long id = this.ids[this.head];
+		this.head = (this.head + 1) % this.ids.length;
+		this.size--;
+		return id;
+	}
+
+	// oldest id without removing it, queue must not be empty
+	public long peek() {
+		return this.ids[this.head];
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+}
@@ -0,0 +1,83 @@
+package ch.ethz.asltest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// table of all requests the middleware is working on, every request gets
+// a monotonically increasing id which points into a preallocated ring of
+// slots, so finding a request by its id is one array access instead of a
+// hash map lookup, and a late response of a request that is already gone
+// (client disconnected) is recognized because its slot no longer holds it
+public class InFlightTable {
+
+	// has to be a power of 2, much more than requests we ever have in flight
+	private static final int SIZE = 1 << 16;
+
+	private final AtomicReferenceArray<Message> slots =
+			new AtomicReferenceArray<Message>(SIZE);
+
+	private final AtomicLong nextId = new AtomicLong(0);
+
+	// id a request gets when the table is full
+	public static final long NO_ID = -1;
+
+	// gives request its id and puts it into the table, or NO_ID if no
+	// slot is free, that is one pass over the whole table, then caller
+	// answers the request right away
+	public long register(Message request) {
+		for (int i = 0; i < SIZE; i++) {
+			long id = this.nextId.getAndIncrement();
+			// slot may still be held by a very old request, then we
+			// simply take next id
+			if (this.slots.compareAndSet((int) (id & (SIZE - 1)), null,
+					request)) {
+				request.id = id;
+				return id;
+			}
+		}
+		request.id = NO_ID;
+		return NO_ID;
+	}
+
+	// request with this id, or null if it is not in flight anymore
+	public Message get(long id) {
+		if (id < 0) {
+			return null;
+		}
+		Message request = this.slots.get((int) (id & (SIZE - 1)));
+		if (request == null || request.id != id) {
+			return null;
+		}
+		return request;
+	}
+
+	// requests in flight right now, index MAX_SERVERS holds all of them
+	// and every other index those not yet answered by the server of that
+	// slot (queued or sent), the table is walked so registering and
+	// removing stay as cheap as they are, only stats command calls it
+	public int[] count() {
+		int[] counts = new int[Cluster.MAX_SERVERS + 1];
+		for (int i = 0; i < SIZE; i++) {
+			Message request = this.slots.get(i);
+			if (request == null) {
+				continue;
+			}
+			counts[Cluster.MAX_SERVERS]++;
+			int backend = request.backend;
+			if (backend >= 0 && backend < Cluster.MAX_SERVERS
+					&& request.response == null) {
+				counts[backend]++;
+			}
+		}
+		return counts;
+	}
+
+	// request is finished or abandoned, its slot can be reused
+	public void remove(Message request) {
+		if (request.id < 0) {
+			return;
+		}
+		this.slots.compareAndSet((int) (request.id & (SIZE - 1)), request,
+				null);
+	}
+}
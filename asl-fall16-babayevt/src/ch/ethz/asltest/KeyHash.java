@@ -0,0 +1,12 @@
+package ch.ethz.asltest;
+
+import java.nio.ByteBuffer;
+
+// hash function used to place servers and keys on HashRing
+// implementations must be safe to call from many threads at once
+public interface KeyHash {
+
+	// hashes length bytes of data starting at offset without touching
+	// position and limit of the buffer, result is compared as unsigned
+	long hash(ByteBuffer data, int offset, int length);
+}
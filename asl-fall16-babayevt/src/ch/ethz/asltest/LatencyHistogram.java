@@ -0,0 +1,143 @@
+package ch.ethz.asltest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// log-linear histogram of latencies in microseconds, in the spirit of
+// HdrHistogram: values below 128 get a bucket each, above that every
+// power of two is split into 64 buckets, so any value is kept with an
+// error below 1/64 (1.6%) and whole range up to hours fits in 2048 buckets
+// only one thread records into a histogram, so recording is a plain
+// read and an ordered write, while reporter thread may read it any time
+// buckets are allocated with the first value, stats keep histograms for
+// every possible server and most of them stay empty
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private static final int HALF = SUB_BUCKETS / 2;
+
+	// values are capped here, that is more than 19 hours
+	private static final long MAX_VALUE = (1L << 36) - 1;
+
+	private static final int NUM_BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+	// counts of buckets, followed by sum of all recorded values, null
+	// until something is recorded
+	private volatile AtomicLongArray counts;
+
+	// called by owner thread only
+	public void record(long micros) {
+		AtomicLongArray counts = this.counts();
+		long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+		int bucket = bucketOf(value);
+		counts.lazySet(bucket, counts.get(bucket) + 1);
+		counts.lazySet(NUM_BUCKETS, counts.get(NUM_BUCKETS) + value);
+	}
+
+	// adds counts of other histogram to ours
+	public void add(LatencyHistogram other) {
+		AtomicLongArray otherCounts = other.counts;
+		if (otherCounts == null) {
+			return;
+		}
+		AtomicLongArray counts = this.counts();
+		for (int i = 0; i <= NUM_BUCKETS; i++) {
+			long count = otherCounts.get(i);
+			if (count != 0) {
+				counts.lazySet(i, counts.get(i) + count);
+			}
+		}
+	}
+
+	// takes counts of other histogram away from ours, used to get
+	// what was recorded since the previous snapshot
+	public void subtract(LatencyHistogram other) {
+		AtomicLongArray otherCounts = other.counts;
+		if (otherCounts == null) {
+			return;
+		}
+		AtomicLongArray counts = this.counts();
+		for (int i = 0; i <= NUM_BUCKETS; i++) {
+			long count = otherCounts.get(i);
+			if (count != 0) {
+				counts.lazySet(i, counts.get(i) - count);
+			}
+		}
+	}
+
+	private AtomicLongArray counts() {
+		if (this.counts == null) {
+			this.counts = new AtomicLongArray(NUM_BUCKETS + 1);
+		}
+		return this.counts;
+	}
+
+	public long count() {
+		if (this.counts == null) {
+			return 0;
+		}
+		long count = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			count += this.counts.get(i);
+		}
+		return count;
+	}
+
+	public long mean() {
+		long count = this.count();
+		return count == 0 ? 0 : this.counts.get(NUM_BUCKETS) / count;
+	}
+
+	// smallest recorded value that is at least at given percentile
+	// (0 to 100), reported as the highest value of its bucket
+	public long percentile(double percentile) {
+		long count = this.count();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += this.counts.get(i);
+			if (seen >= rank) {
+				return highestValueOf(i);
+			}
+		}
+		return MAX_VALUE;
+	}
+
+	public long max() {
+		if (this.counts == null) {
+			return 0;
+		}
+		for (int i = NUM_BUCKETS - 1; i >= 0; i--) {
+			if (this.counts.get(i) != 0) {
+				return highestValueOf(i);
+			}
+		}
+		return 0;
+	}
+
+	// values below SUB_BUCKETS map to themselves, bigger value with highest
+	// bit e keeps its top SUB_BUCKET_BITS bits, which are between HALF
+	// and SUB_BUCKETS, in the group of buckets of e
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS + 1;
+		return shift * HALF + (int) (value >>> shift);
+	}
+
+	private static long highestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / HALF - 1;
+		long low = (long) (bucket % HALF + HALF) << shift;
+		return low + (1L << shift) - 1;
+	}
+}
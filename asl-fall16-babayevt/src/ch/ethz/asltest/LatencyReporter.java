@@ -0,0 +1,165 @@
+package ch.ethz.asltest;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+// thread that every interval merges latency stats of all selector threads
+// and writes percentiles of the last interval to instrum.csv, so that
+// formatting and file writes never happen on the selector threads
+// one row is written for every op, server and metric that had requests,
+// server "all" sums up all servers, "split" holds multi key GETs
+// that went to several servers and "cache" GETs answered by near cache
+// depths of queues and overload counters of the interval go to queues.csv
+// for servers that are in the cluster at the time of report
+public class LatencyReporter implements Runnable {
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private List<LatencyStats> stats;
+
+	private MessageProcessor messageProcessor;
+
+	private int intervalSeconds;
+
+	private BufferedWriter writer;
+
+	private BufferedWriter queueWriter;
+
+	// everything recorded up to the previous report
+	private LatencyStats previous;
+
+	// overload counters of the previous report
+	private long[] previousRejected;
+	private long[] previousPaused;
+	private long[] previousExpired;
+
+	public LatencyReporter(List<LatencyStats> stats,
+			MessageProcessor messageProcessor, int intervalSeconds)
+			throws IOException {
+		this.stats = stats;
+		this.messageProcessor = messageProcessor;
+		this.intervalSeconds = intervalSeconds;
+		this.previousRejected = new long[Cluster.MAX_SERVERS];
+		this.previousPaused = new long[Cluster.MAX_SERVERS];
+		this.previousExpired = new long[Cluster.MAX_SERVERS];
+		this.previous = new LatencyStats(stats.get(0).numServers);
+		this.writer = new BufferedWriter(new FileWriter("instrum.csv"));
+		this.writer.write("time,op_type,server,metric,count,unsuccessful,mean,p50,p90,p99,p99.9,max");
+		this.writer.newLine();
+		this.writer.flush();
+
+		this.queueWriter = new BufferedWriter(new FileWriter("queues.csv"));
+		this.queueWriter.write("time,server,set_queue,get_queue,rejected,paused,expired");
+		this.queueWriter.newLine();
+		this.queueWriter.flush();
+	}
+
+	public void run() {
+		long start = System.nanoTime();
+		while (true) {
+			try {
+				Thread.sleep(this.intervalSeconds * 1000L);
+				long time = (System.nanoTime() - start) / 1000000000L;
+				this.report(time);
+				this.reportQueues(time);
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void report(long time) throws IOException {
+		// histograms only grow, so the interval is the difference
+		// between the current total and the previous one
+		LatencyStats current = new LatencyStats(this.previous.numServers);
+		for (LatencyStats s : this.stats) {
+			current.add(s);
+		}
+
+		for (int op = 0; op < LatencyStats.OPS.length; op++) {
+			LatencyHistogram[] all = new LatencyHistogram[LatencyStats.METRICS.length];
+			long allUnsuccessful = 0;
+			for (int metric = 0; metric < all.length; metric++) {
+				all[metric] = new LatencyHistogram();
+			}
+
+			for (int server = LatencyStats.FIRST; server < current.numServers; server++) {
+				long unsuccessful = current.unsuccessful(op, server)
+						- this.previous.unsuccessful(op, server);
+				allUnsuccessful += unsuccessful;
+				for (int metric = 0; metric < all.length; metric++) {
+					LatencyHistogram interval = new LatencyHistogram();
+					interval.add(current.histogram(op, server, metric));
+					interval.subtract(this.previous.histogram(op, server,
+							metric));
+					all[metric].add(interval);
+					this.writeRow(time, op, serverName(server), metric,
+							unsuccessful, interval);
+				}
+			}
+			for (int metric = 0; metric < all.length; metric++) {
+				this.writeRow(time, op, "all", metric, allUnsuccessful,
+						all[metric]);
+			}
+		}
+		this.writer.flush();
+		this.previous = current;
+	}
+
+	// queue depths are sampled at the time of report, counters are
+	// summed over the interval
+	private void reportQueues(long time) throws IOException {
+		for (Backend backend : this.messageProcessor.cluster().backends) {
+			int i = backend.slot;
+			long rejected = this.messageProcessor.rejected.get(i);
+			long paused = this.messageProcessor.paused.get(i);
+			long expired = this.messageProcessor.expired.get(i);
+			StringBuilder row = new StringBuilder();
+			row.append(time).append(',').append(i).append(',')
+					.append(backend.asynClient.queueDepth()).append(',')
+					.append(backend.getQueue.size()).append(',')
+					.append(rejected - this.previousRejected[i]).append(',')
+					.append(paused - this.previousPaused[i]).append(',')
+					.append(expired - this.previousExpired[i]);
+			this.queueWriter.write(row.toString());
+			this.queueWriter.newLine();
+			this.previousRejected[i] = rejected;
+			this.previousPaused[i] = paused;
+			this.previousExpired[i] = expired;
+		}
+		this.queueWriter.flush();
+	}
+
+	private static String serverName(int server) {
+		if (server == Message.CACHE) {
+			return "cache";
+		} else if (server == Message.SPLIT) {
+			return "split";
+		}
+		return String.valueOf(server);
+	}
+
+	private void writeRow(long time, int op, String server, int metric,
+			long unsuccessful, LatencyHistogram histogram) throws IOException {
+		long count = histogram.count();
+		if (count == 0) {
+			return;
+		}
+		StringBuilder row = new StringBuilder();
+		row.append(time).append(',').append(LatencyStats.OPS[op]).append(',')
+				.append(server).append(',')
+				.append(LatencyStats.METRICS[metric]).append(',')
+				.append(count).append(',').append(unsuccessful).append(',')
+				.append(histogram.mean());
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			row.append(',').append(histogram.percentile(PERCENTILES[i]));
+		}
+		row.append(',').append(histogram.max());
+		this.writer.write(row.toString());
+		this.writer.newLine();
+	}
+}
@@ -0,0 +1,83 @@
+package ch.ethz.asltest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// latencies of all requests finished by one selector thread, split by
+// op type and memcached server, every request is recorded, not only a
+// sample of them, and recording costs a few array writes
+// LatencyReporter merges stats of all selector threads and writes them out
+public class LatencyStats {
+
+	public static final String[] OPS = { "get", "set" };
+
+	public static final String[] METRICS = { "t_total", "t_queue", "t_mcd" };
+
+	public static final int GET = 0;
+	public static final int SET = 1;
+
+	public final int numServers;
+
+	// histograms[op][server - FIRST][metric], besides memcached servers there
+	// are Message.SPLIT for multi key GETs that were split over several
+	// servers and Message.CACHE for GETs answered by near cache
+	private LatencyHistogram[][][] histograms;
+
+	// first server index, Message.CACHE
+	public static final int FIRST = Message.CACHE;
+
+	// unsuccessful requests for every op and server, same indexing
+	private AtomicLongArray unsuccessful;
+
+	public LatencyStats(int numServers) {
+		this.numServers = numServers;
+		this.histograms = new LatencyHistogram[OPS.length][numServers - FIRST][METRICS.length];
+		for (int op = 0; op < OPS.length; op++) {
+			for (int server = 0; server < numServers - FIRST; server++) {
+				for (int metric = 0; metric < METRICS.length; metric++) {
+					this.histograms[op][server][metric] = new LatencyHistogram();
+				}
+			}
+		}
+		this.unsuccessful = new AtomicLongArray(OPS.length * (numServers - FIRST));
+	}
+
+	// called by owner selector thread when response of request is written
+	public void record(Message request) {
+		int op = request.isGet ? GET : SET;
+		LatencyHistogram[] metrics = this.histograms[op][request.backend - FIRST];
+		metrics[0].record(request.responseTime);
+		metrics[1].record(request.queueTime);
+		metrics[2].record(request.processingTime);
+		if (!request.successFlag) {
+			int i = this.index(op, request.backend);
+			this.unsuccessful.lazySet(i, this.unsuccessful.get(i) + 1);
+		}
+	}
+
+	public LatencyHistogram histogram(int op, int server, int metric) {
+		return this.histograms[op][server - FIRST][metric];
+	}
+
+	public long unsuccessful(int op, int server) {
+		return this.unsuccessful.get(this.index(op, server));
+	}
+
+	// adds everything other has recorded to our stats
+	public void add(LatencyStats other) {
+		for (int op = 0; op < OPS.length; op++) {
+			for (int server = FIRST; server < this.numServers; server++) {
+				for (int metric = 0; metric < METRICS.length; metric++) {
+					this.histogram(op, server, metric).add(
+							other.histogram(op, server, metric));
+				}
+				int i = this.index(op, server);
+				this.unsuccessful.lazySet(i, this.unsuccessful.get(i)
+						+ other.unsuccessful(op, server));
+			}
+		}
+	}
+
+	private int index(int op, int server) {
+		return op * (this.numServers - FIRST) + server - FIRST;
+	}
+}
@@ -0,0 +1,232 @@
+package ch.ethz.asltest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+// one closed loop load client, it plays the part of one memaslap
+// instance of our experiments: concurrency connections, each of them
+// sends a request, waits for its response and sends the next one
+// keys come from a window of windowSize keys of this client, all of them
+// are set once before the run so GETs hit like in memaslap runs, and
+// they are picked uniformly or with zipf distribution (hot keys)
+// latency of every request is summed up in the current interval, RunLoad
+// takes the interval every few seconds for TPS_trace.csv and RT_trace.csv
+public class LoadGenerator {
+
+	// exponent of zipf distribution
+	private static final double ZIPF_EXPONENT = 0.99;
+
+	public final int number;
+
+	private String host;
+	private int port;
+	private int concurrency;
+	private double getProportion;
+	private int valueSize;
+	private int windowSize;
+
+	// cumulative probabilities of key ranks, null for uniform keys
+	private double[] zipf;
+
+	private volatile boolean running = true;
+
+	// current interval, guarded by this
+	private long ops = 0;
+	private long misses = 0;
+	private long errors = 0;
+	private double sumMicros = 0;
+	private double sumSquares = 0;
+
+	public LoadGenerator(int number, String host, int port, int concurrency,
+			double getProportion, int valueSize, int windowSize,
+			String keyDistribution) {
+		this.number = number;
+		this.host = host;
+		this.port = port;
+		this.concurrency = concurrency;
+		this.getProportion = getProportion;
+		this.valueSize = valueSize;
+		this.windowSize = windowSize;
+		if (keyDistribution.equals("zipf")) {
+			this.zipf = new double[windowSize];
+			double sum = 0;
+			for (int i = 0; i < windowSize; i++) {
+				sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+				this.zipf[i] = sum;
+			}
+			for (int i = 0; i < windowSize; i++) {
+				this.zipf[i] /= sum;
+			}
+		}
+	}
+
+	// starts one thread per connection, each counts down prefilled once
+	// its share of the window is set and then waits for start
+	public void start(final CountDownLatch prefilled,
+			final CountDownLatch start) {
+		for (int i = 0; i < this.concurrency; i++) {
+			final int connection = i;
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					LoadGenerator.this.run(connection, prefilled, start);
+				}
+			}, "LoadThread" + this.number + "-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public void stop() {
+		this.running = false;
+	}
+
+	// returns the interval since the previous call and starts a new one
+	public synchronized Interval take() {
+		Interval interval = new Interval();
+		interval.ops = this.ops;
+		interval.misses = this.misses;
+		interval.errors = this.errors;
+		if (this.ops > 0) {
+			interval.meanMicros = this.sumMicros / this.ops;
+			double variance = this.sumSquares / this.ops
+					- interval.meanMicros * interval.meanMicros;
+			interval.stdMicros = Math.sqrt(Math.max(variance, 0));
+		}
+		this.ops = 0;
+		this.misses = 0;
+		this.errors = 0;
+		this.sumMicros = 0;
+		this.sumSquares = 0;
+		return interval;
+	}
+
+	private synchronized void record(long micros, boolean miss,
+			boolean error) {
+		this.ops++;
+		this.sumMicros += micros;
+		this.sumSquares += (double) micros * micros;
+		if (miss) {
+			this.misses++;
+		}
+		if (error) {
+			this.errors++;
+		}
+	}
+
+	private void run(int connection, CountDownLatch prefilled,
+			CountDownLatch start) {
+		boolean counted = false;
+		Random random = new Random(31L * this.number + connection);
+		byte[] value = new byte[this.valueSize];
+		Arrays.fill(value, (byte) 'x');
+		try (Socket socket = new Socket(this.host, this.port)) {
+			socket.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(socket.getInputStream(),
+					65536);
+			OutputStream out = new BufferedOutputStream(
+					socket.getOutputStream(), 65536);
+
+			for (int i = connection; i < this.windowSize; i += this.concurrency) {
+				this.set(in, out, this.key(i), value);
+			}
+			prefilled.countDown();
+			counted = true;
+			start.await();
+
+			while (this.running) {
+				String key = this.key(this.nextKey(random));
+				long begin = System.nanoTime();
+				boolean miss = false;
+				boolean error;
+				if (random.nextDouble() < this.getProportion) {
+					int hits = this.get(in, out, key);
+					miss = hits == 0;
+					error = hits == -1;
+				} else {
+					error = !this.set(in, out, key, value);
+				}
+				this.record((System.nanoTime() - begin) / 1000, miss, error);
+			}
+		} catch (IOException e) {
+			System.err.println("Load connection " + this.number + "-"
+					+ connection + " failed: " + e.getMessage());
+		} catch (InterruptedException e) {
+			return;
+		} finally {
+			if (!counted) {
+				prefilled.countDown();
+			}
+		}
+	}
+
+	private int nextKey(Random random) {
+		if (this.zipf == null) {
+			return random.nextInt(this.windowSize);
+		}
+		int rank = Arrays.binarySearch(this.zipf, random.nextDouble());
+		return Math.min(rank < 0 ? -rank - 1 : rank, this.windowSize - 1);
+	}
+
+	private String key(int i) {
+		return "load" + this.number + "-" + i;
+	}
+
+	// true if memcached stored the value
+	private boolean set(InputStream in, OutputStream out, String key,
+			byte[] value) throws IOException {
+		ascii(out, "set " + key + " 0 0 " + value.length + "\r\n");
+		out.write(value);
+		ascii(out, "\r\n");
+		out.flush();
+		return "STORED".equals(readLine(in));
+	}
+
+	// number of values in the response, -1 on an error response
+	private int get(InputStream in, OutputStream out, String key)
+			throws IOException {
+		ascii(out, "get " + key + "\r\n");
+		out.flush();
+		int hits = 0;
+		while (true) {
+			String line = readLine(in);
+			if (line.startsWith("VALUE ")) {
+				String[] tokens = line.split(" ");
+				byte[] data = new byte[Integer.parseInt(tokens[3]) + 2];
+				Streams.readFully(in, data);
+				hits++;
+			} else {
+				return line.equals("END") ? hits : -1;
+			}
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		String line = Streams.readLine(in);
+		if (line == null) {
+			throw new IOException("connection closed by server");
+		}
+		return line;
+	}
+
+	private static void ascii(OutputStream out, String s) throws IOException {
+		for (int i = 0; i < s.length(); i++) {
+			out.write(s.charAt(i));
+		}
+	}
+
+	// what one client did during one report interval
+	public static class Interval {
+		public long ops;
+		public long misses;
+		public long errors;
+		public double meanMicros;
+		public double stdMicros;
+	}
+}
@@ -0,0 +1,61 @@
+package ch.ethz.asltest;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// MD5 placement of old MD5Circle, we take first 8 bytes of digest which
+// keep the order of 128 bit values, so keys land on the same servers
+public class Md5Hash implements KeyHash {
+
+	// MessageDigest is not thread safe, every routing thread gets its own
+	// digest together with scratch arrays, so hashing allocates nothing
+	private final ThreadLocal<State> state = new ThreadLocal<State>() {
+		@Override
+		protected State initialValue() {
+			try {
+				return new State();
+			} catch (NoSuchAlgorithmException e) {
+				// we checked availability of MD5 in constructor
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	public Md5Hash() throws NoSuchAlgorithmException {
+		MessageDigest.getInstance("MD5");
+	}
+
+	public long hash(ByteBuffer data, int offset, int length) {
+		State s = this.state.get();
+		if (s.input.length < length) {
+			s.input = new byte[length];
+		}
+		for (int i = 0; i < length; i++) {
+			s.input[i] = data.get(offset + i);
+		}
+		s.digest.update(s.input, 0, length);
+		try {
+			s.digest.digest(s.output, 0, s.output.length);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (s.output[i] & 0xff);
+		}
+		return hash;
+	}
+
+	private static class State {
+		private final MessageDigest digest;
+		private byte[] input = new byte[256];
+		private final byte[] output = new byte[16];
+
+		State() throws NoSuchAlgorithmException {
+			this.digest = MessageDigest.getInstance("MD5");
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package ch.ethz.asltest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+
+// small memcached look alike for benchmarks on one machine, RunLoad starts
+// it inside its own process so no real memcached host is needed
+// it speaks text protocol (get, gets, set, add, replace, append, prepend,
+// cas, delete, flush_all) and binary protocol, binary frames are turned
+// into text commands and back the same way as middleware does it for its
+// clients
+// every command holds one of a few worker permits for its service time,
+// like a memcached with that many worker threads, so the stand-in can
+// be made the bottleneck of a run
+public class MemcachedStandIn implements Runnable {
+
+	private static final byte[] CRLF = "\r\n".getBytes();
+
+	private int port;
+
+	private long serviceNanos;
+
+	private Semaphore workers;
+
+	private Map<String, Item> items = new ConcurrentHashMap<String, Item>();
+
+	// cas values are only unique, not ordered
+	private long nextCas = 1;
+
+	private BufferPool bufferPool = new BufferPool();
+
+	private ServerSocket serverSocket;
+
+	public MemcachedStandIn(int port, int serviceMicros, int numWorkers)
+			throws IOException {
+		this.port = port;
+		this.serviceNanos = serviceMicros * 1000L;
+		this.workers = new Semaphore(numWorkers);
+		this.serverSocket = new ServerSocket();
+		this.serverSocket.setReuseAddress(true);
+		this.serverSocket.bind(new InetSocketAddress(port), 1024);
+	}
+
+	public void run() {
+		int n = 0;
+		while (true) {
+			try {
+				final Socket socket = this.serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						serve(socket);
+					}
+				}, "StandInThread" + this.port + "-" + n++);
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+	}
+
+	// one thread per connection, responses of pipelined requests are
+	// flushed together once nothing more has arrived
+	private void serve(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream(),
+					65536);
+			OutputStream out = new BufferedOutputStream(
+					socket.getOutputStream(), 65536);
+			in.mark(1);
+			int first = in.read();
+			in.reset();
+			boolean binary = (byte) first == BinaryProtocol.REQUEST;
+			while (binary ? this.executeFrame(in, out) : this.execute(in, out)) {
+				if (in.available() == 0) {
+					out.flush();
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			// client went away
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	// reads and answers one text command, false at end of stream
+	private boolean execute(InputStream in, OutputStream out)
+			throws IOException {
+		String line = Streams.readLine(in);
+		if (line == null) {
+			return false;
+		}
+		String[] tokens = line.trim().split(" +");
+		String command = tokens[0];
+		boolean noreply = tokens[tokens.length - 1].equals("noreply");
+
+		this.serviceTime();
+		if ((command.equals("get") || command.equals("gets"))
+				&& tokens.length > 1) {
+			for (int i = 1; i < tokens.length; i++) {
+				Item item = this.items.get(tokens[i]);
+				if (item != null) {
+					ascii(out, "VALUE " + tokens[i] + " " + item.flags + " "
+							+ item.value.length);
+					if (command.equals("gets")) {
+						ascii(out, " " + item.cas);
+					}
+					out.write(CRLF);
+					out.write(item.value);
+					out.write(CRLF);
+				}
+			}
+			ascii(out, "END\r\n");
+		} else if (isStorage(command) && tokens.length >= 5) {
+			int length = Integer.parseInt(tokens[4]);
+			byte[] value = new byte[length];
+			Streams.readFully(in, value);
+			if (in.read() != '\r' || in.read() != '\n') {
+				ascii(out, "CLIENT_ERROR bad data chunk\r\n");
+				return true;
+			}
+			String result = this.store(command, tokens, value);
+			if (!noreply) {
+				ascii(out, result);
+			}
+		} else if (command.equals("delete") && tokens.length > 1) {
+			boolean deleted = this.items.remove(tokens[1]) != null;
+			if (!noreply) {
+				ascii(out, deleted ? "DELETED\r\n" : "NOT_FOUND\r\n");
+			}
+		} else if (command.equals("flush_all")) {
+			this.items.clear();
+			if (!noreply) {
+				ascii(out, "OK\r\n");
+			}
+		} else if (command.equals("version")) {
+			ascii(out, "VERSION 1.4.25-standin\r\n");
+		} else {
+			ascii(out, "ERROR\r\n");
+		}
+		return true;
+	}
+
+	// reads and answers one binary frame, its command is run as text
+	// command and text response is turned into a frame again
+	private boolean executeFrame(InputStream in, OutputStream out)
+			throws IOException {
+		byte[] header = new byte[BinaryProtocol.HEADER_LENGTH];
+		try {
+			Streams.readFully(in, header);
+		} catch (EOFException e) {
+			return false;
+		}
+		ByteBuffer frame = ByteBuffer.wrap(header);
+		byte[] whole = new byte[header.length
+				+ BinaryProtocol.bodyLength(frame, 0)];
+		System.arraycopy(header, 0, whole, 0, header.length);
+		Streams.readFully(in, whole, header.length, whole.length
+				- header.length);
+		frame = ByteBuffer.wrap(whole);
+
+		ByteBuffer text = BinaryProtocol.toText(frame, 0, this.bufferPool);
+		ByteBuffer response;
+		Message request = new Message(null, null, text);
+		request.opcode = BinaryProtocol.opcode(frame, 0);
+		request.opaque = BinaryProtocol.opaque(frame, 0);
+		if (text == null) {
+			this.serviceTime();
+			response = BinaryProtocol.response(request.opcode,
+					request.opaque, BinaryProtocol.directStatus(frame, 0),
+					this.bufferPool);
+		} else {
+			byte[] command = new byte[text.limit()];
+			text.duplicate().get(command);
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			this.execute(new ByteArrayInputStream(command), result);
+			response = BinaryProtocol.toBinary(request,
+					ByteBuffer.wrap(result.toByteArray()), this.bufferPool);
+			this.bufferPool.release(text);
+		}
+		byte[] bytes = new byte[response.remaining()];
+		response.get(bytes);
+		out.write(bytes);
+		this.bufferPool.release(response);
+		return true;
+	}
+
+	// storage commands change one item under the lock of the map,
+	// only gets and deletes go without it
+	private String store(String command, String[] tokens, byte[] value) {
+		String key = tokens[1];
+		synchronized (this.items) {
+			Item old = this.items.get(key);
+			if (command.equals("add") && old != null) {
+				return "NOT_STORED\r\n";
+			}
+			if ((command.equals("replace") || command.equals("append") || command
+					.equals("prepend")) && old == null) {
+				return "NOT_STORED\r\n";
+			}
+			if (command.equals("cas")) {
+				if (old == null) {
+					return "NOT_FOUND\r\n";
+				}
+				if (tokens.length < 6
+						|| !Long.toUnsignedString(old.cas).equals(tokens[5])) {
+					return "EXISTS\r\n";
+				}
+			}
+
+			Item item = new Item();
+			item.cas = this.nextCas++;
+			if (command.equals("append") || command.equals("prepend")) {
+				item.flags = old.flags;
+				item.value = new byte[old.value.length + value.length];
+				byte[] front = command.equals("append") ? old.value : value;
+				byte[] back = command.equals("append") ? value : old.value;
+				System.arraycopy(front, 0, item.value, 0, front.length);
+				System.arraycopy(back, 0, item.value, front.length, back.length);
+			} else {
+				item.flags = tokens[2];
+				item.value = value;
+			}
+			this.items.put(key, item);
+			return "STORED\r\n";
+		}
+	}
+
+	private void serviceTime() {
+		if (this.serviceNanos == 0) {
+			return;
+		}
+		this.workers.acquireUninterruptibly();
+		try {
+			LockSupport.parkNanos(this.serviceNanos);
+		} finally {
+			this.workers.release();
+		}
+	}
+
+	private static boolean isStorage(String command) {
+		return command.equals("set") || command.equals("add")
+				|| command.equals("replace") || command.equals("append")
+				|| command.equals("prepend") || command.equals("cas");
+	}
+
+	private static void ascii(OutputStream out, String s) throws IOException {
+		for (int i = 0; i < s.length(); i++) {
+			out.write(s.charAt(i));
+		}
+	}
+
+	private static class Item {
+		private String flags;
+		private byte[] value;
+		private long cas;
+	}
+}
@@ -1,29 +1,164 @@
 package ch.ethz.asltest;
 
-import java.nio.channels.SocketChannel;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 // this helper class holds a message in a data structure
-// together with memaslap client's socket and reference to our
+// together with memaslap client's connection and reference to our
 // mwServer
 class Message {
 	public MiddlewareServer server;
-	public SocketChannel socket;
-	public byte[] data;
+	public ClientConnection connection;
+
+	// id given by InFlightTable, responses travel back with it
+	public long id;
+
+	// whole command lies between 0 and limit of this buffer, it comes
+	// from BufferPool and is released when response is written back
+	public ByteBuffer data;
+
+	// set if this is one sub request of a multi key GET, then response
+	// goes to multiGet instead of directly to the client
+	public MultiGet multiGet;
+	public int partIndex;
+
+	// server a GET is outstanding at, set only in "least" read mode
+	public Backend readFrom;
+
+	// set if this GET leads identical GETs which wait for its response
+	public SingleFlight singleFlight;
+	public List<Message> followers;
+
+	// set if this GET may be (or is) duplicated to another replica, only
+	// first response of the two reaches the client
+	public HedgedGet hedge;
+
+	// replication status, used by asynchronous client only
+	public RequestState state;
+
+	// response waiting to be written to the client, it is set by a client
+	// of memcached and read by selector thread, volatile is all the
+	// synchronization the hand-off needs
+	public volatile ByteBuffer response;
+
+	// memcached server the request went to, SPLIT for multi key GET
+	// split over several servers, CACHE if near cache answered it
+	public int backend = SPLIT;
+
+	// requests still waiting in queue at this nanoTime are not sent to
+	// memcached anymore, 0 if they may wait forever
+	public long deadline = 0;
+
+	// set when request missed its deadline
+	public boolean expired = false;
+
+	// generation of near cache segment seen by a GET that missed the
+	// cache, -1 if response of this request must not be cached
+	public long cacheStamp = -1;
 
 	// 4 instrumentation parameters are held in instances of this class
+	// every request is timed, all times end up in microseconds
 	public boolean isGet = true;
-	public boolean isLogged = false;
 	public long responseTime;
 	public long queueTime;
 	public long processingTime;
 	public boolean successFlag = true;
 
-	public static final String set = ",set";
-	public static final String get = ",get";
+	// answered by the middleware itself (cluster command, binary noop,
+	// full inFlight table, too large data block), it is not recorded in
+	// latency stats
+	public boolean isAdmin = false;
+
+	// binary protocol clients: opcode and opaque of the request frame,
+	// text response is turned into a frame before it is written
+	public int opcode = TEXT;
+	public int opaque;
+	public boolean responseEncoded = false;
+
+	// key of a binary frame in data, taken from its header by the parser,
+	// -1 for text commands whose key is found by messageProcessor
+	public int keyStart = -1;
+	public int keyLength;
+
+	// binary frame written to memcached by a client in binary mode,
+	// released once it is written
+	public ByteBuffer frame;
 
-	public Message(MiddlewareServer server, SocketChannel socket, byte[] data) {
+	public static final int SPLIT = -1;
+	public static final int CACHE = -2;
+
+	// opcode of text protocol requests
+	public static final int TEXT = -1;
+
+	public Message(MiddlewareServer server, ClientConnection connection,
+			ByteBuffer data) {
 		this.server = server;
-		this.socket = socket;
+		this.connection = connection;
 		this.data = data;
 	}
+
+	// hands response of memcached over to the client, clients of
+	// memcached call this instead of mwServer.send()
+	public void reply(ByteBuffer response) {
+		this.leaveServer();
+		if (this.hedge != null && !this.hedge.answer(this, response)) {
+			return;
+		}
+		this.deliver(response);
+	}
+
+	// response goes to waiting GETs and client, hedge has no say anymore
+	void deliver(ByteBuffer response) {
+		// waiting identical GETs get their copies first
+		if (this.singleFlight != null) {
+			this.singleFlight.complete(this, response);
+		}
+		if (this.multiGet != null) {
+			this.multiGet.complete(this, response);
+		} else {
+			this.server.send(this.id, response);
+		}
+	}
+
+	// called by clients of memcached when they take request from queue,
+	// if it waited too long it gets an error and true is returned
+	public boolean expire(long now) {
+		if (this.deadline == 0 || now <= this.deadline) {
+			return false;
+		}
+		this.expired = true;
+		this.successFlag = false;
+		this.reply(RequestState.QUEUE_TIMEOUT);
+		return true;
+	}
+
+	// called by clients of memcached when they take request from queue,
+	// true if this is a hedged GET whose other copy was answered already,
+	// it is not sent then
+	public boolean superseded() {
+		if (this.hedge == null || !this.hedge.isDone()) {
+			return false;
+		}
+		this.leaveServer();
+		return true;
+	}
+
+	// same for one of constant responses of RequestState
+	public void reply(byte[] response) {
+		this.leaveServer();
+		if (this.multiGet != null || this.singleFlight != null
+				|| this.hedge != null) {
+			this.reply(this.server.wrap(response));
+		} else {
+			this.server.send(this.id, response);
+		}
+	}
+
+	// GET is not outstanding at its server anymore
+	private void leaveServer() {
+		if (this.readFrom != null) {
+			this.readFrom.outstanding.decrementAndGet();
+			this.readFrom = null;
+		}
+	}
 }
@@ -1,122 +1,196 @@
 package ch.ethz.asltest;
 
-import java.nio.channels.SocketChannel;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.security.*;
 import java.io.IOException;
 
 public class MessageProcessor {
 
-	private List<String> addresses;
+	// clients that were replaced or whose server left keep serving requests
+	// queued for them this long, threads that routed by the old cluster
+	// may still put requests to their queues for a moment
+	private static final long RETIRE_GRACE = 1000000000L;
 
-	private int[] ports;
-
-	private int numServers;
+	// admin commands waiting for the admin thread, more of them are
+	// answered with an error
+	private static final int ADMIN_QUEUE = 16;
 
 	private int numThreadsPTP;
 
 	private int writeToCount;
 
+	private MiddlewareConfig config;
+
+	// how a GET picks a server of its key's replica set, see -e
+	private boolean leastOutstanding;
+
+	private boolean twoChoices;
+
+	// clients speak binary protocol to memcached
+	private boolean binary;
+
 	// next 2 fields may help to track balancing of requests
 	private int[] assignmentTracker;
 
 	private int counter = 0;
 
-	// our object that will do hashing
-	private MD5Circle hasher;
-
-	// main queues for SET and GET requests
-	private List<BlockingQueue<Message>> setQueues;
+	// our object that will do hashing, every cluster builds its ring with it
+	private KeyHash keyHash;
 
-	private List<BlockingQueue<Message>> getQueues;
+	// current servers with their queues and clients, and the ring that
+	// maps keys to them, replaced as a whole when membership changes
+	private volatile Cluster cluster;
 
-	// main clients for asynchronous and synchronous operations
-	private List<AsynClient> asynClients;
+	// servers that were failed over by health monitor with their places
+	// in the list of servers, they come back there when they recover,
+	// guarded by this like membership changes
+	private Map<Backend, Integer> down = new LinkedHashMap<Backend, Integer>();
 
-	private List<SynThreadPool> synClients;
-
-	// instance of loggerMap is created in this class and then passed
+	// instance of inFlight table is created in this class and then passed
 	// to mwServer and asynchronous client
-	public Map<SocketChannel, Message> loggerMap = new ConcurrentHashMap<SocketChannel, Message>();
+	public InFlightTable inFlight = new InFlightTable();
+
+	// same as inFlight, one pool of buffers is shared by mwServer
+	// and all clients
+	public BufferPool bufferPool = new BufferPool();
+
+	// null unless near cache is turned on, mwServer answers GETs from it
+	// and invalidates it with every write
+	public NearCache nearCache;
+
+	// answers "stats" commands, set by MyMiddleware once latency stats
+	// of all selector threads exist
+	public StatsCommand statsCommand;
+
+	// one thread runs all "stats" and "cluster" commands one after the
+	// other, so clients sending many of them do not start as many threads
+	private ExecutorService admin = new ThreadPoolExecutor(1, 1, 0,
+			TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(ADMIN_QUEUE),
+			new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					return new Thread(runnable, "AdminThread");
+				}
+			});
+
+	// null unless GETs of replicated keys are hedged (-d), set by
+	// MyMiddleware like statsCommand, hedger needs latency stats as well
+	public Hedger hedger;
+
+	// null unless identical GETs in flight are coalesced
+	private SingleFlight singleFlight;
+
+	// overload counters of every server slot, LatencyReporter exports them
+	// together with depths of queues
+	public AtomicLongArray rejected;
+	public AtomicLongArray paused;
+	public AtomicLongArray expired;
 
 	public MessageProcessor(List<String> mcAddresses, int numThreadsPTP,
-			int writeToCount) throws NoSuchAlgorithmException {
+			int writeToCount, MiddlewareConfig config)
+			throws NoSuchAlgorithmException {
 
-		this.numServers = mcAddresses.size();
+		if (mcAddresses.size() > Cluster.MAX_SERVERS) {
+			throw new IllegalArgumentException("at most "
+					+ Cluster.MAX_SERVERS + " servers are supported");
+		}
 
-		this.ports = new int[numServers];
+		this.rejected = new AtomicLongArray(Cluster.MAX_SERVERS);
+		this.paused = new AtomicLongArray(Cluster.MAX_SERVERS);
+		this.expired = new AtomicLongArray(Cluster.MAX_SERVERS);
 
-		this.addresses = new ArrayList<String>();
+		this.config = config;
 
-		this.hasher = new MD5Circle(numServers, 20);
+		this.leastOutstanding = config.readMode.equals("least");
+		this.twoChoices = config.readMode.equals("p2c");
+		this.binary = config.backendProtocol.equals("binary");
 
-		// parse mcAddresses to separate server addresses and ports
-		for (int i = 0; i < numServers; i++) {
-			String[] splitted = mcAddresses.get(i).split(":");
-			this.addresses.add(splitted[0]);
-			this.ports[i] = Integer.parseInt(splitted[1]);
+		if (config.singleFlight) {
+			this.singleFlight = new SingleFlight(this.bufferPool);
 		}
 
-		this.numThreadsPTP = numThreadsPTP;
-
-		this.writeToCount = writeToCount;
-
-		this.setQueues = new ArrayList<BlockingQueue<Message>>();
-		this.getQueues = new ArrayList<BlockingQueue<Message>>();
+		if (config.nearCacheMegabytes > 0) {
+			this.nearCache = new NearCache(config.nearCacheMegabytes * 1024L * 1024L);
+		}
 
-		this.asynClients = new ArrayList<AsynClient>();
-		this.synClients = new ArrayList<SynThreadPool>();
+		this.keyHash = HashRing.hashFunction(config.hashFunction);
 
-		for (int i = 0; i < numServers; i++) {
+		this.numThreadsPTP = numThreadsPTP;
 
-			this.setQueues.add(new ArrayBlockingQueue<Message>(5000));
-			this.getQueues.add(new ArrayBlockingQueue<Message>(5000));
+		this.writeToCount = writeToCount;
 
+		// parse mcAddresses to separate server addresses and ports, first
+		// servers keep their old positions on the ring
+		List<Backend> backends = new ArrayList<Backend>();
+		for (int i = 0; i < mcAddresses.size(); i++) {
+			String[] splitted = mcAddresses.get(i).split(":");
 			try {
-
-				// start async clients
-				this.asynClients.add(new AsynClient(i, this.addresses,
-						this.ports, this.setQueues.get(i), this.numServers,
-						this.writeToCount, loggerMap));
-
-				// dedicate 1 thread to each
-				new Thread(this.asynClients.get(i), "AsynClientThread" + i)
-						.start();
-
-				// start threadpools for sync clients
-				this.synClients.add(new SynThreadPool(this.numThreadsPTP,
-						this.addresses.get(i), this.ports[i], this.getQueues
-								.get(i)));
-
+				backends.add(this.startBackend(i, splitted[0],
+						Integer.parseInt(splitted[1]),
+						HashRing.nodeName(i, mcAddresses.get(i))));
 			} catch (IOException e) {
 				System.err.println(e);
 			}
 		}
 
-		this.assignmentTracker = new int[this.numServers];
+		Cluster cluster = new Cluster(backends, this.writeToCount,
+				this.keyHash);
+		for (Backend backend : backends) {
+			try {
+				backend.replicas = cluster.replicaNames(backend);
+				backend.asynClient = this.startAsynClient(cluster
+						.replicasOf(backend));
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+		}
+		this.cluster = cluster;
 
+		this.assignmentTracker = new int[Cluster.MAX_SERVERS];
 	}
 
-	public void processData(Message request) throws NoSuchAlgorithmException {
-
-		// assignment of key to memcached server through hashing
-		int assignedTo;
-
-		// if our request starts with letter "d" then it a delete request
-		// and key is located on positions 7:22 of byte array
-		if (request.data[0] == 100) {
-			assignedTo = this.hasher.get(Arrays
-					.copyOfRange(request.data, 7, 23));
-		// else, key is on positions 4:19 and we hash these entries
+	// returns false if queue of request's server is full, request is not
+	// taken then and mwServer applies overload policy to it
+	public boolean processData(Message request) {
+
+		// one view of membership for the whole request
+		Cluster cluster = this.cluster;
+
+		int keyStart;
+		int keyEnd;
+		boolean isGet;
+		if (request.keyStart >= 0) {
+			// binary frame has one key, parser knows where it is and its
+			// opcode tells if it is a GET
+			keyStart = request.keyStart;
+			keyEnd = keyStart + request.keyLength;
+			isGet = request.isGet;
 		} else {
-			assignedTo = this.hasher.get(Arrays
-					.copyOfRange(request.data, 4, 20));
+			// key is the second token of every command, for 16 byte keys
+			// of memaslap these are the same bytes 4:19 (7:22 for delete)
+			// which were hashed before, so keys stay on their servers
+			keyStart = tokenStart(request.data, tokenEnd(request.data, 0));
+			keyEnd = tokenEnd(request.data, keyStart);
+			isGet = request.data.get(0) == 103;
+
+			// "get k1 k2 ... kn" may ask for keys of different servers
+			if (isGet && tokenStart(request.data, keyEnd) < lineEnd(request.data)) {
+				return this.processMultiGet(cluster, request, keyStart);
+			}
 		}
 
+		// assignment of key to memcached server through hashing
+		int assignedTo = cluster.ring.get(request.data, keyStart, keyEnd
+				- keyStart);
+		Backend backend = cluster.get(assignedTo);
+
 		// this piece of code may be used to check how load is balanced
 		// uncomment to use
 
@@ -145,20 +219,662 @@ public class MessageProcessor {
 		// if first letter is "g", we put to queue for sync client
 		// else, into async queue
 		// before doing that we also start logging queue time
-		if (request.data[0] == 103) {
+		request.backend = assignedTo;
+		if (isGet) {
 
-			if (request.isLogged) {
-				request.queueTime = System.nanoTime();
-			}
-			getQueues.get(assignedTo).add(request);
+			this.startQueueing(request);
+			return this.enqueueGet(cluster, backend, request);
 
 		} else {
 
-			if (request.isLogged) {
-				request.queueTime = System.nanoTime();
+			// GETs coming after this write must not join a GET sent before
+			if (this.singleFlight != null) {
+				this.singleFlight.forget(request);
+			}
+			this.startQueueing(request);
+			// asynchronous client wakes up if it sleeps in select()
+			return backend.asynClient.offer(request);
+
+		}
+	}
+
+	public Cluster cluster() {
+		return this.cluster;
+	}
+
+	// runs admin command of request on the admin thread, if too many of
+	// them wait already request is answered with an error instead
+	public void runAdmin(Message request, Runnable command) {
+		try {
+			this.admin.execute(command);
+		} catch (RejectedExecutionException e) {
+			request.successFlag = false;
+			request.reply(RequestState.OVERLOADED);
+		}
+	}
+
+	// starts logging queue time and sets deadline of request
+	private void startQueueing(Message request) {
+		request.queueTime = System.nanoTime();
+		if (this.config.maxQueueWait > 0) {
+			request.deadline = request.queueTime + this.config.maxQueueWait
+					* 1000000L;
+		}
+	}
+
+	// splits keys of multi key GET by their servers and sends one GET with
+	// all keys of a server to each of them in parallel, MultiGet merges
+	// the responses back into one
+	private boolean processMultiGet(Cluster cluster, Message request,
+			int firstKey) {
+		int lineEnd = lineEnd(request.data);
+
+		// find server of every key, servers are indexed by their slots
+		List<Integer> keyStarts = new ArrayList<Integer>();
+		List<Integer> keyServers = new ArrayList<Integer>();
+		int[] keysPerServer = new int[Cluster.MAX_SERVERS];
+		int[] bytesPerServer = new int[Cluster.MAX_SERVERS];
+		int keyStart = firstKey;
+		while (keyStart < lineEnd) {
+			int keyEnd = tokenEnd(request.data, keyStart);
+			int server = cluster.ring.get(request.data, keyStart, keyEnd
+					- keyStart);
+			keyStarts.add(keyStart);
+			keyServers.add(server);
+			keysPerServer[server]++;
+			bytesPerServer[server] += 1 + keyEnd - keyStart;
+			keyStart = tokenStart(request.data, keyEnd);
+		}
+
+		int numParts = 0;
+		int onlyServer = -1;
+		for (int i = 0; i < Cluster.MAX_SERVERS; i++) {
+			if (keysPerServer[i] > 0) {
+				numParts++;
+				onlyServer = i;
+			}
+		}
+
+		// all keys live on one server, request can go there as it is
+		if (numParts == 1) {
+			request.backend = onlyServer;
+			this.startQueueing(request);
+			return this.enqueueGet(cluster, cluster.get(onlyServer), request);
+		}
+
+		// either all parts are queued or none, other selector threads may
+		// still fill a queue after this check, that part fails on its own
+		for (int i = 0; i < Cluster.MAX_SERVERS; i++) {
+			if (keysPerServer[i] > 0
+					&& cluster.get(i).getQueue.remainingCapacity() == 0) {
+				request.backend = i;
+				return false;
+			}
+		}
+
+		// request itself is not queued, it takes times of its slowest part
+		this.startQueueing(request);
+		long queueTime = request.queueTime;
+		request.queueTime = 0;
+
+		// "get" or "gets" is repeated in every sub request
+		int commandEnd = tokenEnd(request.data, 0);
+		MultiGet multiGet = new MultiGet(request, numParts, this.bufferPool);
+		int partIndex = 0;
+		for (int server = 0; server < Cluster.MAX_SERVERS; server++) {
+			if (keysPerServer[server] == 0) {
+				continue;
+			}
+
+			ByteBuffer data = this.bufferPool.acquire(commandEnd
+					+ bytesPerServer[server] + 2);
+			for (int i = 0; i < commandEnd; i++) {
+				data.put(request.data.get(i));
+			}
+			for (int k = 0; k < keyStarts.size(); k++) {
+				if (keyServers.get(k) != server) {
+					continue;
+				}
+				data.put((byte) ' ');
+				int keyEnd = tokenEnd(request.data, keyStarts.get(k));
+				for (int i = keyStarts.get(k); i < keyEnd; i++) {
+					data.put(request.data.get(i));
+				}
+			}
+			data.put((byte) '\r');
+			data.put((byte) '\n');
+			data.flip();
+
+			Message part = new Message(request.server, request.connection, data);
+			part.multiGet = multiGet;
+			part.partIndex = partIndex++;
+			part.queueTime = queueTime;
+			part.deadline = request.deadline;
+			if (!this.enqueueGet(cluster, cluster.get(server), part)) {
+				// earlier parts are queued already, so this one is answered
+				// here and the whole request gets its error
+				this.rejected.incrementAndGet(part.backend);
+				part.successFlag = false;
+				part.queueTime = 0;
+				part.reply(RequestState.OVERLOADED);
+			}
+		}
+		request.backend = Message.SPLIT;
+		return true;
+	}
+
+	// queues GET at primary server of its keys, or at one of its replicas
+	private boolean enqueueGet(Cluster cluster, Backend primary,
+			Message request) {
+		Backend backend = this.readFrom(cluster, primary);
+		request.backend = backend.slot;
+		BlockingQueue<Message> queue = backend.getQueue;
+		if (queue.remainingCapacity() == 0) {
+			return false;
+		}
+		// same GET is already on its way to memcached, wait for it
+		if (this.singleFlight != null && request.multiGet == null
+				&& this.singleFlight.join(request)) {
+			return true;
+		}
+		// counted before offer, response may come before offer returns
+		if (this.leastOutstanding) {
+			backend.outstanding.incrementAndGet();
+			request.readFrom = backend;
+		}
+		// set before offer, client may answer right after it
+		Backend[] replicas = cluster.replicasOf(primary);
+		if (this.hedger != null && replicas.length > 1
+				&& request.multiGet == null) {
+			request.hedge = new HedgedGet(request, replicas, indexOf(replicas,
+					backend), this.bufferPool, this.hedger);
+		}
+		if (!queue.offer(request)) {
+			// other selector thread took the last place after our check,
+			// requests may already wait for this one, so it cannot be
+			// given back and fails right away
+			this.rejected.incrementAndGet(backend.slot);
+			request.successFlag = false;
+			request.queueTime = 0;
+			request.reply(RequestState.OVERLOADED);
+			return true;
+		}
+		// pipelined client sleeps in select(), not in queue.take()
+		if (backend.pipelinedClient != null) {
+			backend.pipelinedClient.wakeup();
+		}
+		if (request.hedge != null) {
+			this.hedger.add(request.hedge);
+		}
+		return true;
+	}
+
+	// called by hedger, duplicate of a slow GET goes to another replica,
+	// if the queue got full meanwhile it is simply not sent
+	void sendDuplicate(Backend backend, Message duplicate) {
+		if (this.leastOutstanding) {
+			backend.outstanding.incrementAndGet();
+			duplicate.readFrom = backend;
+		}
+		if (!backend.getQueue.offer(duplicate)) {
+			if (duplicate.readFrom != null) {
+				backend.outstanding.decrementAndGet();
+			}
+			return;
+		}
+		if (backend.pipelinedClient != null) {
+			backend.pipelinedClient.wakeup();
+		}
+	}
+
+	private static int indexOf(Backend[] replicas, Backend backend) {
+		for (int i = 0; i < replicas.length; i++) {
+			if (replicas[i] == backend) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	// every write goes to all servers of the replica set, and is answered
+	// when all of them stored it, so any of them may serve GETs, RunMW
+	// allows other read modes only then, a write answered by quorum (-a)
+	// may still be missing on the replica a GET would read
+	private Backend readFrom(Cluster cluster, Backend primary) {
+		Backend[] replicas = cluster.replicasOf(primary);
+		if (replicas.length == 1) {
+			return primary;
+		}
+		if (this.leastOutstanding) {
+			// ties go to servers nearer to primary
+			Backend best = replicas[0];
+			int bestLoad = best.outstanding.get();
+			for (int i = 1; i < replicas.length; i++) {
+				int load = replicas[i].outstanding.get();
+				if (load < bestLoad) {
+					best = replicas[i];
+					bestLoad = load;
+				}
+			}
+			return best;
+		}
+		if (this.twoChoices) {
+			// two different servers at random, shorter GET queue wins
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int first = random.nextInt(replicas.length);
+			int second = random.nextInt(replicas.length - 1);
+			if (second >= first) {
+				second++;
+			}
+			if (replicas[second].getQueue.size() < replicas[first].getQueue
+					.size()) {
+				return replicas[second];
+			}
+			return replicas[first];
+		}
+		return primary;
+	}
+
+	// "cluster add <host:port>" and "cluster remove <host:port>" change
+	// membership while middleware runs
+	static boolean isClusterCommand(ByteBuffer data) {
+		byte[] command = "cluster ".getBytes();
+		if (data.limit() < command.length) {
+			return false;
+		}
+		for (int i = 0; i < command.length; i++) {
+			if (data.get(i) != command[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// applies cluster command on the admin thread, opening connections to a
+	// new server takes a while and selector thread must not wait for it,
+	// client gets "OK" when new cluster is in use
+	public void changeMembership(final Message request) {
+		// any client can reach our port, so servers are only added and
+		// removed when we were started to take such commands
+		if (!this.config.clusterCommands) {
+			request.successFlag = false;
+			request.reply(("CLIENT_ERROR cluster commands are disabled\r\n")
+					.getBytes());
+			return;
+		}
+		this.runAdmin(request, new Runnable() {
+			public void run() {
+				ByteBuffer data = request.data;
+				int actionStart = tokenStart(data, tokenEnd(data, 0));
+				int actionEnd = tokenEnd(data, actionStart);
+				int nameStart = tokenStart(data, actionEnd);
+				int nameEnd = tokenEnd(data, nameStart);
+				String action = string(data, actionStart, actionEnd);
+				String name = string(data, nameStart, nameEnd);
+				try {
+					if (action.equals("add") && name.indexOf(':') > 0) {
+						addServer(name);
+					} else if (action.equals("remove")) {
+						removeServer(name);
+					} else {
+						request.successFlag = false;
+						request.reply(("CLIENT_ERROR usage: cluster add|remove <host:port>\r\n")
+								.getBytes());
+						return;
+					}
+					request.reply(RequestState.OK);
+				} catch (IOException e) {
+					request.successFlag = false;
+					request.reply(("SERVER_ERROR " + e.getMessage() + "\r\n")
+							.getBytes());
+				}
+			}
+		});
+	}
+
+	// new server takes over keys of its arcs of the ring, all other keys
+	// stay where they are, values are not copied, so moved keys miss
+	// once and are then read from memcached (cache) again
+	private void addServer(String name) throws IOException {
+		int slot = 0;
+		synchronized (this) {
+			Cluster current = this.cluster;
+			if (current.find(name) != null) {
+				throw new IOException(name + " is already in the cluster");
+			}
+			if (this.findDown(name) != null) {
+				throw new IOException(name
+						+ " is down, it comes back once it answers again");
+			}
+			// slots of failed over servers are kept for them
+			while (slot < Cluster.MAX_SERVERS
+					&& (current.get(slot) != null || this.isDownSlot(slot))) {
+				slot++;
+			}
+		}
+		if (slot == Cluster.MAX_SERVERS) {
+			throw new IOException("at most " + Cluster.MAX_SERVERS
+					+ " servers are supported");
+		}
+
+		String[] splitted = name.split(":");
+		int port;
+		try {
+			port = Integer.parseInt(splitted[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("bad port of " + name);
+		}
+		// only our admin thread adds servers, so name and slot are still
+		// free when the new cluster is built
+		final Backend backend = this.startBackend(slot, splitted[0], port,
+				name);
+		try {
+			this.change(new Change() {
+				Cluster next(Cluster current) {
+					List<Backend> backends = new ArrayList<Backend>(
+							current.backends);
+					backends.add(backend);
+					return new Cluster(backends, writeToCount, keyHash);
+				}
+			});
+		} catch (IOException e) {
+			this.retireGets(backend, System.nanoTime());
+			throw e;
+		}
+		System.out.println("server " + name + " joined the cluster");
+	}
+
+	// keys of the server go to the servers that follow its arcs on the
+	// ring, requests already queued for it are still served
+	private void removeServer(final String name) throws IOException {
+		this.change(new Change() {
+			Cluster next(Cluster current) throws IOException {
+				Backend backend = current.find(name);
+				if (backend == null && findDown(name) != null) {
+					// failed over already, it is just not brought back
+					down.remove(findDown(name));
+					return null;
+				}
+				if (backend == null) {
+					throw new IOException(name + " is not in the cluster");
+				}
+				if (current.backends.size() == 1) {
+					throw new IOException("cannot remove the last server");
+				}
+				List<Backend> backends = new ArrayList<Backend>(
+						current.backends);
+				backends.remove(backend);
+				return new Cluster(backends, writeToCount, keyHash);
 			}
-			setQueues.get(assignedTo).add(request);
+		});
+		System.out.println("server " + name + " left the cluster");
+	}
+
+	// called by health monitor when circuit of server opened, server
+	// leaves the ring like with "cluster remove", so its keys go to the
+	// next live server on the ring, and its clients answer requests still
+	// queued for it with SERVER_ERROR, last live server is never failed
+	// over, there would be nowhere to go
+	void failOver(final Backend backend) throws IOException {
+		boolean failedOver;
+		try {
+			failedOver = this.change(new Change() {
+				int position;
+
+				Cluster next(Cluster current) {
+					this.position = current.backends.indexOf(backend);
+					if (this.position == -1 || current.backends.size() == 1) {
+						return null;
+					}
+					// its clients stop waiting for it while clients of the
+					// new cluster connect
+					backend.health.open = true;
+					List<Backend> backends = new ArrayList<Backend>(
+							current.backends);
+					backends.remove(this.position);
+					return new Cluster(backends, writeToCount, keyHash);
+				}
+
+				void done() {
+					down.put(backend, this.position);
+				}
+			});
+		} catch (IOException e) {
+			backend.health.open = false;
+			throw e;
+		}
+		if (failedOver) {
+			System.out.println("server " + backend.name()
+					+ " is down, its keys go to the next servers on the ring");
+		}
+	}
+
+	// called by health monitor when failed over server answers again, it
+	// gets new clients and its old place, so its keys come back to it
+	void recover(final Backend backend) throws IOException {
+		synchronized (this) {
+			if (!this.down.containsKey(backend)) {
+				return;
+			}
+		}
+		final Backend recovered = this.startBackend(backend.slot,
+				backend.address, backend.port, backend.nodeName);
+		boolean back;
+		try {
+			back = this.change(new Change() {
+				Cluster next(Cluster current) {
+					// "cluster remove" may have forgotten it meanwhile
+					Integer position = down.get(backend);
+					if (position == null) {
+						return null;
+					}
+					List<Backend> backends = new ArrayList<Backend>(
+							current.backends);
+					backends.add(Math.min(position, backends.size()), recovered);
+					return new Cluster(backends, writeToCount, keyHash);
+				}
+
+				void done() {
+					down.remove(backend);
+				}
+			});
+		} catch (IOException e) {
+			this.retireGets(recovered, System.nanoTime());
+			throw e;
+		}
+		if (!back) {
+			this.retireGets(recovered, System.nanoTime());
+			return;
+		}
+		System.out.println("server " + backend.name() + " is back");
+	}
 
+	// failed over servers, health monitor keeps probing them
+	public synchronized List<Backend> downServers() {
+		return new ArrayList<Backend>(this.down.keySet());
+	}
+
+	private Backend findDown(String name) {
+		for (Backend backend : this.down.keySet()) {
+			if (backend.name().equals(name)) {
+				return backend;
+			}
 		}
+		return null;
+	}
+
+	private boolean isDownSlot(int slot) {
+		for (Backend backend : this.down.keySet()) {
+			if (backend.slot == slot) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// one membership change, next() and done() run under our lock
+	private abstract class Change {
+
+		// cluster after the change, null if there is nothing to change
+		abstract Cluster next(Cluster current) throws IOException;
+
+		// called once next cluster is in use
+		void done() {
+		}
+	}
+
+	// applies change, asynchronous clients of the next cluster are
+	// started and connected without our lock, so health monitor and
+	// admin commands do not wait for connects of each other, if cluster
+	// changed meanwhile the clients are dropped and change is tried
+	// again, returns false if there was nothing to change
+	private boolean change(Change change) throws IOException {
+		while (true) {
+			Cluster current;
+			Cluster next;
+			synchronized (this) {
+				current = this.cluster;
+				next = change.next(current);
+			}
+			if (next == null) {
+				return false;
+			}
+			Map<Backend, AsynClient> started = this.startAsynClients(next);
+			synchronized (this) {
+				if (this.cluster == current) {
+					this.swap(current, next, started);
+					change.done();
+					return true;
+				}
+			}
+			for (AsynClient client : started.values()) {
+				client.retire(System.nanoTime());
+			}
+		}
+	}
+
+	// asynchronous clients for every server of next cluster whose
+	// replicas change, connected when they are returned
+	private Map<Backend, AsynClient> startAsynClients(Cluster next)
+			throws IOException {
+		Map<Backend, AsynClient> started = new HashMap<Backend, AsynClient>();
+		try {
+			for (Backend backend : next.backends) {
+				if (!Arrays.equals(next.replicaNames(backend), backend.replicas)) {
+					started.put(backend,
+							this.startAsynClient(next.replicasOf(backend)));
+				}
+			}
+		} catch (IOException e) {
+			// old clients are still in place, just drop the new ones
+			for (AsynClient client : started.values()) {
+				client.retire(System.nanoTime());
+			}
+			throw e;
+		}
+		return started;
+	}
+
+	// makes next the current cluster with clients started for it and
+	// retires clients nobody uses now
+	private void swap(Cluster current, Cluster next,
+			Map<Backend, AsynClient> started) {
+		List<AsynClient> replaced = new ArrayList<AsynClient>();
+		for (Backend backend : started.keySet()) {
+			if (backend.asynClient != null) {
+				replaced.add(backend.asynClient);
+			}
+			backend.replicas = next.replicaNames(backend);
+			backend.asynClient = started.get(backend);
+		}
+		this.cluster = next;
+
+		long stopAt = System.nanoTime() + RETIRE_GRACE;
+		for (AsynClient client : replaced) {
+			client.retire(stopAt);
+		}
+		for (Backend backend : current.backends) {
+			if (next.get(backend.slot) != backend) {
+				backend.asynClient.retire(stopAt);
+				this.retireGets(backend, stopAt);
+			}
+		}
+	}
+
+	// creates GET queue of a server and starts its GET clients
+	private Backend startBackend(int slot, String address, int port,
+			String nodeName) throws IOException {
+		Backend backend = new Backend(slot, address, port, nodeName,
+				new ArrayBlockingQueue<Message>(this.config.queueCapacity));
+
+		if (this.config.getMode.equals("pipelined")) {
+			// one thread keeps all GETs for this server in flight
+			// on a few non blocking connections
+			backend.pipelinedClient = new PipelinedClient(address, port,
+					this.config.numConnections, backend.getQueue,
+					this.bufferPool, this.binary, backend.health,
+					this.config.backendTimeout);
+			new Thread(backend.pipelinedClient, "PipelinedClientThread"
+					+ slot).start();
+		} else {
+			// start threadpools for sync clients
+			backend.synClients = new SynThreadPool(this.numThreadsPTP,
+					address, port, backend.getQueue, this.bufferPool,
+					this.config.getMode.equals("virtual"), backend.health,
+					this.config.backendTimeout);
+		}
+		return backend;
+	}
+
+	// asynchronous client with its own queue, primary server first
+	private AsynClient startAsynClient(Backend[] replicas) throws IOException {
+		AsynClient client = new AsynClient(replicas,
+				new ArrayBlockingQueue<Message>(this.config.queueCapacity),
+				this.bufferPool, this.binary, this.config.writeQuorum,
+				this.config.backendTimeout);
+
+		// dedicate 1 thread to each
+		new Thread(client, "AsynClientThread" + replicas[0].name()).start();
+		return client;
+	}
+
+	private void retireGets(Backend backend, long stopAt) {
+		if (backend.pipelinedClient != null) {
+			backend.pipelinedClient.retire(stopAt);
+		} else {
+			backend.synClients.retire(stopAt);
+		}
+	}
+
+	private static String string(ByteBuffer data, int from, int to) {
+		byte[] bytes = new byte[to - from];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = data.get(from + i);
+		}
+		return new String(bytes);
+	}
+
+	// end of token starting at from (first space or "\r")
+	static int tokenEnd(ByteBuffer data, int from) {
+		int i = from;
+		while (i < data.limit() && data.get(i) != ' ' && data.get(i) != '\r') {
+			i++;
+		}
+		return i;
+	}
+
+	// start of next token after position from, or end of request line
+	static int tokenStart(ByteBuffer data, int from) {
+		int i = from;
+		while (i < data.limit() && data.get(i) == ' ') {
+			i++;
+		}
+		return i;
+	}
+
+	// position of "\r" that ends the request line
+	static int lineEnd(ByteBuffer data) {
+		int lineEnd = GetResponse.lineEnd(data, 0, data.limit());
+		return lineEnd == -1 ? data.limit() : lineEnd;
 	}
 }
@@ -0,0 +1,58 @@
+package ch.ethz.asltest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+// this class owns listening socket of the middleware, it only accepts
+// memaslap's connections and hands them over to one of selector threads
+// (instances of MiddlewareServer) in round robin fashion
+public class MiddlewareAcceptor implements Runnable {
+
+	private String hostAddress;
+
+	private int port;
+
+	private ServerSocketChannel serverChannel;
+
+	// selector threads that will own accepted connections
+	private List<MiddlewareServer> servers;
+
+	// index of selector thread that gets next connection
+	private int next = 0;
+
+	public MiddlewareAcceptor(String hostAddress, int port,
+			List<MiddlewareServer> servers) throws IOException {
+		this.hostAddress = hostAddress;
+		this.port = port;
+		this.servers = servers;
+
+		this.serverChannel = ServerSocketChannel.open();
+		// acceptor does nothing else, so it can simply block in accept()
+		this.serverChannel.configureBlocking(true);
+
+		InetSocketAddress isa = new InetSocketAddress(
+				InetAddress.getByName(this.hostAddress), this.port);
+		this.serverChannel.socket().bind(isa);
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				SocketChannel socketChannel = this.serverChannel.accept();
+				// selector threads work in non blocking fashion
+				socketChannel.configureBlocking(false);
+
+				// connection stays with the same selector thread until it
+				// is closed, so its requests and responses never cross threads
+				this.servers.get(this.next).register(socketChannel);
+				this.next = (this.next + 1) % this.servers.size();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package ch.ethz.asltest;
+
+// optional settings of the middleware, RunMW fills them from command line
+// and the rest of the middleware only reads them, every field starts
+// with its default value
+public class MiddlewareConfig {
+
+	// number of selector threads serving memaslap connections (-s)
+	public int numSelectors = 1;
+
+	// hash function of the ring, md5 or murmur3 (-h)
+	public String hashFunction = "md5";
+
+	// how GET requests are sent to memcached (-g): "pipelined" keeps many
+	// requests in flight on a few non blocking connections, "threads" is
+	// the old pool of -t blocking SynClient threads per server, "virtual"
+	// runs the -t SynClients on virtual threads (Java 21), so -t can be
+	// in the hundreds without as many OS threads
+	public String getMode = "pipelined";
+
+	// non blocking connections per server in pipelined GET mode (-c)
+	public int numConnections = 2;
+
+	// seconds between two latency reports written to instrum.csv (-i)
+	public int statsInterval = 5;
+
+	// memory of near cache for hot GET keys in megabytes, 0 turns it off (-n)
+	public int nearCacheMegabytes = 0;
+
+	// identical GETs in flight at the same time share one request
+	// to memcached (-f on|off)
+	public boolean singleFlight = true;
+
+	// capacity of set and get queue of every server (-q)
+	public int queueCapacity = 5000;
+
+	// what happens to a request whose server queue is full (-o): "pause"
+	// stops reading from its client until the queue has room again,
+	// "reject" answers it with SERVER_ERROR at once
+	public String overloadPolicy = "pause";
+
+	// requests waiting in queue longer than this many milliseconds get
+	// SERVER_ERROR instead of being sent to memcached, 0 is no limit (-w)
+	public int maxQueueWait = 0;
+
+	// which server of a key's replica set serves its GETs (-e): "primary"
+	// only, "least" the one with fewest outstanding GETs, "p2c" the one with
+	// shorter GET queue of two picked at random, replicas exist with -r > 1
+	public String readMode = "primary";
+
+	// protocol spoken to memcached (-b text|binary), binary is used by
+	// asynchronous and pipelined clients, blocking GET threads stay text
+	public String backendProtocol = "text";
+
+	// replicas that must store a write before client gets its answer (-a),
+	// the rest are still waited for in background, 0 waits for all of them,
+	// less than all only goes with primary reads, no hedging and no near
+	// cache
+	public int writeQuorum = 0;
+
+	// memcached that does not answer within this many milliseconds has
+	// failed a request, repeated failures take it out of the ring until
+	// it answers again (-x), 0 waits forever and never fails over
+	public int backendTimeout = 0;
+
+	// GET of a replicated key that is not answered within this percentile
+	// of its server's GET response times is sent to the next replica as
+	// well, first response wins (-d), 0 turns hedging off
+	public double hedgePercentile = 0;
+
+	// duplicates are at most this many percent of hedged GETs (-d, second
+	// value)
+	public int hedgeBudget = 5;
+
+	// "cluster add|remove" commands are taken from clients (-k on|off),
+	// off by default since every client of the port could send them
+	public boolean clusterCommands = false;
+}
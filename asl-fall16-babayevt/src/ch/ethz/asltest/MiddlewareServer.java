@@ -1,116 +1,189 @@
 package ch.ethz.asltest;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.logging.FileHandler;
-import java.util.logging.Handler;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.logging.LogRecord;
-import java.util.logging.Formatter;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+// each instance of this class is one selector thread of the middleware,
+// it reads requests from and writes responses to connections that
+// MiddlewareAcceptor has handed over to it
 public class MiddlewareServer implements Runnable {
 
-	private String hostAddress;
-
-	private int port;
-
-	private ServerSocketChannel serverChannel;
-
-	// selector is needed since we accept connections here
+	// selector is needed since we serve many connections here
 	private Selector selector;
 
-	private ByteBuffer readBuffer = ByteBuffer.allocate(1536);
+	// buffers for requests and responses come from this pool
+	private BufferPool bufferPool;
+
+	// taken from the pool once and reused for every read
+	private ByteBuffer readBuffer;
 
 	// read requests will be passed to this messageProcessor
 	private MessageProcessor messageProcessor;
 
-	// our only logger
-	private Logger logger = Logger.getLogger(Class.class.getName());
+	// latencies of every request we finish, only this thread records
+	// into it and LatencyReporter reads it
+	private LatencyStats stats;
+
+	// at most this many responses are written with one gathering write
+	private static final int MAX_BATCH = 64;
+
+	// connections that got new responses, clients of memcached put them
+	// here without any lock and selector thread writes them out, this
+	// way we never touch keys from other threads (they are not thread
+	// safe in Java NIO)
+	private Queue<ClientConnection> readyConnections = new ConcurrentLinkedQueue<ClientConnection>();
+
+	// true while our thread is about to sleep in select(), so clients
+	// of memcached wake us up only when it is needed
+	private AtomicBoolean sleeping = new AtomicBoolean(false);
 
-	// counter will make sure that only 1 of 100 get or set
-	// requests will be logged
-	private int getCounter = 0;
-	private int setCounter = 0;
+	// reused for every gathering write
+	private ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
 
-	// should have queue for changing keys since
-	// keys are not thread safe in Java NIO
-	private List<ChangeKey> changeKeyQueue = new LinkedList<ChangeKey>();
+	// connections accepted by MiddlewareAcceptor that still have to be
+	// registered with our selector
+	private List<SocketChannel> newChannels = new LinkedList<SocketChannel>();
 
-	// maps memaslap's client's socket to queue of responses
-	// to be sent to that client
-	private Map<SocketChannel, List<ByteBuffer>> queueToMemaslap = new HashMap<SocketChannel, List<ByteBuffer>>();
+	// gives every request its id, clients of memcached send responses
+	// back by that id
+	private InFlightTable inFlight;
 
-	// gives access to Message object where we track times
-	// and other instrumentation stuff
-	public Map<SocketChannel, Message> loggerMap;
+	// null if near cache is turned off
+	private NearCache nearCache;
 
-	public MiddlewareServer(String hostAddress, int port,
-			MessageProcessor messageProcessor,
-			Map<SocketChannel, Message> loggerMap) throws IOException {
-		this.hostAddress = hostAddress;
-		this.port = port;
-		this.selector = this.initSelector();
+	// true for pause overload policy, false for reject
+	private boolean pauseOnOverload;
+
+	// connections with a parked request, they are tried again every
+	// millisecond until queues have room
+	private ArrayDeque<ClientConnection> pausedConnections = new ArrayDeque<ClientConnection>();
+
+	public MiddlewareServer(MessageProcessor messageProcessor,
+			InFlightTable inFlight, BufferPool bufferPool, LatencyStats stats,
+			MiddlewareConfig config) throws IOException {
+		this.selector = SelectorProvider.provider().openSelector();
 		this.messageProcessor = messageProcessor;
-		this.loggerMap = loggerMap;
-		this.logger.setLevel(Level.INFO);
-		// no need to write log to console, set it false
-		this.logger.setUseParentHandlers(false);
-		Handler handler = new FileHandler("instrum.csv");
-		handler.setFormatter(new MyCustomFormatter());
-		this.logger.addHandler(handler);
-		this.logger.info("t_total,t_queue,t_mcd,flag,op_type");
+		this.inFlight = inFlight;
+		this.nearCache = messageProcessor.nearCache;
+		this.bufferPool = bufferPool;
+		this.readBuffer = bufferPool.acquire(2048);
+		this.stats = stats;
+		this.pauseOnOverload = config.overloadPolicy.equals("pause");
+	}
+
+	// this method is called by MiddlewareAcceptor and hands new connection
+	// over to this selector thread
+	public void register(SocketChannel socketChannel) {
+		synchronized (this.newChannels) {
+			this.newChannels.add(socketChannel);
+		}
+		// selector has to wake up to register the channel itself
+		this.selector.wakeup();
+	}
+
+	// this method is called by asynchronous client with one of constant
+	// responses, we copy it to a pooled buffer so that all responses
+	// can be released the same way after writing
+	public void send(long id, byte[] data) {
+		this.send(id, this.wrap(data));
+	}
+
+	// copies data to a buffer of our pool
+	public ByteBuffer wrap(byte[] data) {
+		return this.bufferPool.wrap(data);
+	}
+
+	// called by asynchronous client when memcached answered a write,
+	// before its response is sent, invalidates near cache once more in
+	// case a GET read the old value while write was running, also when
+	// client of the write is gone already
+	public void written(Message request) {
+		if (this.nearCache != null) {
+			this.nearCache.invalidate(request);
+		}
 	}
 
 	// this method is called by asynchronous or synchronous client
-	// and adds response to queueToMemaslap
-	public void send(SocketChannel socket, byte[] data) {
-		synchronized (this.changeKeyQueue) {
-			// since we now have something to write we change
-			// key for this channel to WRITE state
-			this.changeKeyQueue
-					.add(new ChangeKey(socket, SelectionKey.OP_WRITE));
-
-			synchronized (this.queueToMemaslap) {
-				List<ByteBuffer> queue = (List<ByteBuffer>) this.queueToMemaslap
-						.get(socket);
-				if (queue == null) {
-					queue = new ArrayList<ByteBuffer>();
-					this.queueToMemaslap.put(socket, queue);
-				}
-				queue.add(ByteBuffer.wrap(data));
+	// and attaches response to request with this id, buffer is released
+	// after it is written to the client
+	public void send(long id, ByteBuffer data) {
+		Message request = this.inFlight.get(id);
+		if (request == null) {
+			// client is gone, nobody waits for this response
+			this.bufferPool.release(data);
+			return;
+		}
+
+		// GET hits fill near cache, writes were invalidated by written()
+		if (this.nearCache != null && request.isGet) {
+			this.nearCache.fill(request, data);
+		}
+
+		// response is published by the volatile write, then connection
+		// is queued for writing unless it is queued already
+		request.response = data;
+		ClientConnection connection = request.connection;
+		if (connection.flushScheduled.compareAndSet(false, true)) {
+			this.readyConnections.offer(connection);
+			// wakes up selector's blocking .select() method
+			if (this.sleeping.compareAndSet(true, false)) {
+				this.selector.wakeup();
 			}
 		}
-		// wakes up selector's blocking .select() method
-		this.selector.wakeup();
 	}
 
 	public void run() {
 		while (true) {
 			try {
-				// change any keys, if necessary
-				synchronized (this.changeKeyQueue) {
-					Iterator<ChangeKey> changes = this.changeKeyQueue
-							.iterator();
-					while (changes.hasNext()) {
-						ChangeKey change = (ChangeKey) changes.next();
-						SelectionKey key = change.socket.keyFor(this.selector);
-						key.interestOps(change.ops);
+				// register new connections, after registering socket channel
+				// goes to READ state since we expect some request from it
+				// and gets its own parser for incoming bytes
+				synchronized (this.newChannels) {
+					for (SocketChannel socketChannel : this.newChannels) {
+						ClientConnection connection = new ClientConnection(
+								new RequestParser(this.bufferPool));
+						connection.key = socketChannel.register(this.selector,
+								SelectionKey.OP_READ, connection);
 					}
-					this.changeKeyQueue.clear();
+					this.newChannels.clear();
 				}
 
-				// blocking method which waites for some events from connections
-				this.selector.select();
+				// flag is set before we look at the queue, so response that
+				// comes after our look always wakes the selector up
+				this.sleeping.set(true);
+
+				// write responses that came since the last round
+				ClientConnection ready;
+				while ((ready = this.readyConnections.poll()) != null) {
+					// cleared before writing, a response coming meanwhile
+					// queues the connection again
+					ready.flushScheduled.set(false);
+					// connection may be closed in the meantime, and if it
+					// waits for OP_WRITE selector will flush it
+					if (ready.key.isValid()
+							&& (ready.key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+						this.write(ready.key);
+					}
+				}
+
+				// paused connections may go on if their queues have room
+				this.resumePaused();
+
+				// blocking method which waites for some events from
+				// connections, paused connections are checked every ms
+				if (this.pausedConnections.isEmpty()) {
+					this.selector.select();
+				} else {
+					this.selector.select(1);
+				}
+				this.sleeping.set(false);
 
 				// typical Java NIO iteration over selected keys for socket channels
 				Iterator<SelectionKey> selectedKeys = this.selector
@@ -126,11 +199,10 @@ public class MiddlewareServer implements Runnable {
 
 					// define which action key is ready to perform and
 					// perform that action
-					if (key.isAcceptable()) {
-						this.accept(key);
-					} else if (key.isReadable()) {
+					if (key.isReadable()) {
 						this.read(key);
-					} else if (key.isWritable()) {
+					}
+					if (key.isValid() && key.isWritable()) {
 						this.write(key);
 					}
 				}
@@ -140,41 +212,9 @@ public class MiddlewareServer implements Runnable {
 		}
 	}
 
-	private Selector initSelector() throws IOException {
-		// initialize selector
-		Selector socketSelector = SelectorProvider.provider().openSelector();
-		this.serverChannel = ServerSocketChannel.open();
-		// use non blocking fashion over here
-		serverChannel.configureBlocking(false);
-
-		InetSocketAddress isa = new InetSocketAddress(
-				InetAddress.getByName(this.hostAddress), this.port);
-		serverChannel.socket().bind(isa);
-
-		// register serversocketchannel with selector
-		// and make it ready to accept connections
-		serverChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
-
-		return socketSelector;
-	}
-
-	// helper method accepts socketchannels and registers
-	// them with our selector
-	private void accept(SelectionKey key) throws IOException {
-		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key
-				.channel();
-
-		SocketChannel socketChannel = serverSocketChannel.accept();
-		// as usual, non blocking fashion here
-		socketChannel.configureBlocking(false);
-
-		// after registering, this socket channel goes to READ state
-		// since we expect some request from it
-		socketChannel.register(this.selector, SelectionKey.OP_READ);
-	}
-
 	private void read(SelectionKey key) throws IOException {
 		SocketChannel socketChannel = (SocketChannel) key.channel();
+		ClientConnection connection = (ClientConnection) key.attachment();
 
 		this.readBuffer.clear();
 
@@ -184,107 +224,296 @@ public class MiddlewareServer implements Runnable {
 		} catch (IOException e) {
 			// if client closed connection, we cancel key and discard
 			// client's socketchannel
-			key.cancel();
-			socketChannel.close();
+			this.close(key);
 			return;
 		}
 
 		if (numRead == -1) {
+			// client closed connection in a clean way
+			this.close(key);
 			return;
 		}
 
-		byte[] dataCopy = new byte[numRead];
-		System.arraycopy(this.readBuffer.array(), 0, dataCopy, 0, numRead);
+		// one read may hold part of a request or several pipelined requests,
+		// so parser keeps the bytes and gives back only complete commands
+		this.readBuffer.flip();
+		connection.parser.append(this.readBuffer);
+
+		this.startRequests(key);
+	}
+
+	// starts complete commands of the connection, near cache or overload
+	// policy may have answered some of them right away
+	private void startRequests(SelectionKey key) throws IOException {
+		ClientConnection connection = (ClientConnection) key.attachment();
+		this.processRequests(key);
+		if (key.isValid() && hasResponse(connection)
+				&& (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+			this.write(key);
+		}
+	}
+
+	// takes complete commands of the connection from its parser, pipelined
+	// commands are processed in parallel up to MAX_PIPELINED of them
+	private void processRequests(SelectionKey key) throws IOException {
+		ClientConnection connection = (ClientConnection) key.attachment();
+
+		while (connection.parked == null
+				&& connection.requests.size() < ClientConnection.MAX_PIPELINED) {
+			ByteBuffer command;
+			try {
+				command = connection.parser.next();
+			} catch (IOException e) {
+				// client sent garbage we cannot frame, drop its connection
+				this.close(key);
+				return;
+			}
+			if (command == null) {
+				return;
+			}
+			this.handleRequest(connection, command);
+		}
+	}
+
+	// creates message for one complete command and passes it
+	// to messageProcessor
+	private void handleRequest(ClientConnection connection,
+			ByteBuffer command) {
 		// initialize instance of Message class
-		Message newRequest = new Message(this, socketChannel, dataCopy);
+		Message newRequest = new Message(this, connection, command);
 
-		// log only each 100th get and set request and
-		if (dataCopy[0] != 103) {
+		// every request is timed, start logging response time
+		newRequest.responseTime = System.nanoTime();
+		if (command.limit() == 0 || command.get(0) != 103) {
 			newRequest.isGet = false;
-			this.setCounter++;
-		} else {
-			this.getCounter++;
 		}
 
-		// map socketchannel to message
-		this.loggerMap.put(socketChannel, newRequest);
+		// request gets its id, responses find it by that id
+		long id = this.inFlight.register(newRequest);
+		connection.requests.add(newRequest);
+
+		if (connection.parser.binary) {
+			newRequest.opcode = connection.parser.opcode;
+			newRequest.opaque = connection.parser.opaque;
+			newRequest.isGet = BinaryProtocol.isGet(newRequest.opcode);
+			// noop and frames that have no text command are answered here
+			if (command.limit() == 0) {
+				newRequest.isAdmin = true;
+				newRequest.responseEncoded = true;
+				newRequest.response = BinaryProtocol.response(
+						newRequest.opcode, newRequest.opaque,
+						connection.parser.status, this.bufferPool);
+				return;
+			}
+			newRequest.keyStart = connection.parser.keyStart;
+			newRequest.keyLength = connection.parser.keyLength;
+		} else if (connection.parser.tooLarge) {
+			// its data block was skipped, memcached would refuse it anyway
+			newRequest.isAdmin = true;
+			newRequest.successFlag = false;
+			newRequest.response = this.wrap(RequestState.TOO_LARGE);
+			return;
+		}
+
+		// table is full, no server could hand the response back to us
+		if (id == InFlightTable.NO_ID) {
+			newRequest.isAdmin = true;
+			newRequest.successFlag = false;
+			newRequest.response = this.wrap(RequestState.OVERLOADED);
+			return;
+		}
 
-		// conditional checks it is 100th request and
-		// starts logging
-		if (this.getCounter % 100 == 1) {
+		// membership change is answered once it is done
+		if (MessageProcessor.isClusterCommand(command)) {
+			newRequest.isAdmin = true;
+			this.messageProcessor.changeMembership(newRequest);
+			return;
+		}
+
+		// stats are collected on the admin thread as well
+		if (StatsCommand.isStatsCommand(command)) {
+			newRequest.isAdmin = true;
+			this.messageProcessor.statsCommand.answer(newRequest);
+			return;
+		}
+
+		if (this.nearCache != null) {
 			if (newRequest.isGet) {
-				newRequest.isLogged = true;
-				newRequest.responseTime = System.nanoTime();
-			}
-		} else if (this.setCounter % 100 == 1) {
-			if (!newRequest.isGet) {
-				newRequest.isLogged = true;
-				newRequest.responseTime = System.nanoTime();
+				// hit is answered here and never reaches memcached
+				byte[] cached = this.nearCache.lookup(newRequest);
+				if (cached != null) {
+					newRequest.backend = Message.CACHE;
+					newRequest.response = this.bufferPool.wrap(cached);
+					return;
+				}
+			} else {
+				this.nearCache.invalidate(newRequest);
 			}
 		}
 
 		// pass the message to our messageProcessor
-		try {
-			this.messageProcessor.processData(newRequest);
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
+		this.dispatch(connection, newRequest);
+	}
+
+	// passes request to messageProcessor, if queue of its server is full
+	// request is either parked or answered with an error right away, so
+	// selector thread never blocks on a full queue
+	private void dispatch(ClientConnection connection, Message request) {
+		if (this.messageProcessor.processData(request)) {
+			return;
+		}
+		if (this.pauseOnOverload) {
+			// we stop reading from client, its socket buffer fills and
+			// TCP slows the client down
+			this.messageProcessor.paused.incrementAndGet(request.backend);
+			connection.parked = request;
+			connection.key.interestOps(connection.key.interestOps()
+					& ~SelectionKey.OP_READ);
+			this.pausedConnections.add(connection);
+		} else {
+			this.messageProcessor.rejected.incrementAndGet(request.backend);
+			// queueing may have started before its queue was found full,
+			// request never waited in it
+			request.successFlag = false;
+			request.queueTime = 0;
+			request.response = this.wrap(RequestState.OVERLOADED);
+		}
+	}
+
+	// gives parked requests another try, connections whose request is
+	// taken are read again
+	private void resumePaused() throws IOException {
+		int n = this.pausedConnections.size();
+		for (int i = 0; i < n; i++) {
+			ClientConnection connection = this.pausedConnections.poll();
+			SelectionKey key = connection.key;
+			if (!key.isValid()) {
+				continue;
+			}
+			if (!this.messageProcessor.processData(connection.parked)) {
+				this.pausedConnections.add(connection);
+				continue;
+			}
+			connection.parked = null;
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			// commands client sent before we paused it
+			this.startRequests(key);
 		}
 	}
 
 	private void write(SelectionKey key) throws IOException {
 		SocketChannel socketChannel = (SocketChannel) key.channel();
+		ClientConnection connection = (ClientConnection) key.attachment();
 
-		// extract message instance from loggerMap
-		Message request = this.loggerMap.get(socketChannel);
-
-		// access queue to memaslap to see what we have to
-		// send back to this channel
-		synchronized (this.queueToMemaslap) {
-			List<ByteBuffer> queue = (List<ByteBuffer>) this.queueToMemaslap
-					.get(socketChannel);
+		// responses are written in the order of requests, so every batch
+		// stops at the first request which has no response yet
+		while (true) {
+			if (!hasResponse(connection)) {
+				// after writing data, get ready to listen to that channel
+				// again and start commands client has pipelined in the
+				// meantime, near cache may answer some of them at once
+				key.interestOps(readOps(connection));
+				this.processRequests(key);
+				if (!key.isValid() || !hasResponse(connection)) {
+					return;
+				}
+			}
 
-			while (!queue.isEmpty()) {
-				ByteBuffer buf = (ByteBuffer) queue.get(0);
-				socketChannel.write(buf);
-				if (buf.remaining() > 0) {
-					// break in case of buffer overfill
+			int n = 0;
+			for (Message request : connection.requests) {
+				if (n == MAX_BATCH || request.response == null) {
 					break;
 				}
-				queue.remove(0);
+				// binary clients get their text response as a frame
+				if (request.opcode != Message.TEXT && !request.responseEncoded) {
+					ByteBuffer text = request.response;
+					request.response = BinaryProtocol.toBinary(request, text,
+							this.bufferPool);
+					request.responseEncoded = true;
+					this.bufferPool.release(text);
+				}
+				this.batch[n++] = request.response;
 			}
 
-			if (queue.isEmpty()) {
-				// finalize logging response time, if we log this request
-				if (request.isLogged) {
-					request.responseTime = (System.nanoTime() - request.responseTime) / 1000;
-					String logMsg;
-					// different output for gets and sets
-					if (request.isGet) {
-						logMsg = String.format("%1$s,%2$s,%3$s,%4$s",
-								request.responseTime, request.queueTime,
-								request.processingTime,
-								String.valueOf(request.successFlag)) + Message.get;
-					} else {
-						logMsg = String.format("%1$s,%2$s,%3$s,%4$s",
-								request.responseTime, request.queueTime,
-								request.processingTime,
-								String.valueOf(request.successFlag)) + Message.set;
-					}
-					this.logger.info(logMsg);
+			try {
+				socketChannel.write(this.batch, 0, n);
+			} catch (IOException e) {
+				Arrays.fill(this.batch, 0, n, null);
+				this.close(key);
+				return;
+			}
+			// if not even the whole batch went out, socket buffer is full
+			boolean socketFull = this.batch[n - 1].hasRemaining();
+			Arrays.fill(this.batch, 0, n, null);
+
+			while (!connection.requests.isEmpty()) {
+				ByteBuffer response = connection.requests.peek().response;
+				if (response == null || response.hasRemaining()) {
+					break;
 				}
-				// after writing data, get ready to listen to that channel again
-				key.interestOps(SelectionKey.OP_READ);
+				this.finish(connection.requests.poll());
+			}
+
+			if (socketFull) {
+				// we stay in WRITE state until socket buffer drains
+				key.interestOps(readOps(connection) | SelectionKey.OP_WRITE);
+				return;
 			}
 		}
 	}
 
-	private static class MyCustomFormatter extends Formatter {
-	  @Override
-	  public String format(LogRecord record) {
-	    StringBuffer sb = new StringBuffer();
-	    sb.append(record.getMessage());
-	    sb.append("\n");
-	    return sb.toString();
-    }
+	// paused connection is not read
+	private static int readOps(ClientConnection connection) {
+		return connection.parked == null ? SelectionKey.OP_READ : 0;
+	}
+
+	// true if response of the oldest request can be written
+	private static boolean hasResponse(ClientConnection connection) {
+		return !connection.requests.isEmpty()
+				&& connection.requests.peek().response != null;
+	}
+
+	// request is done, its buffers go back to the pool and its id is freed
+	private void finish(Message request) {
+		this.bufferPool.release(request.response);
+		request.response = null;
+		// command of a hedged GET may still be written by the loser
+		if (request.hedge == null || !request.hedge.isDuplicated()) {
+			this.bufferPool.release(request.data);
+			request.data = null;
+		}
+		this.inFlight.remove(request);
+
+		if (request.expired && request.backend >= 0) {
+			this.messageProcessor.expired.incrementAndGet(request.backend);
+		}
+
+		// finalize logging response time and record all three times, a
+		// GET answered by its duplicate takes queue and memcached times
+		// of the duplicate, the request's own are still being written
+		request.responseTime = (System.nanoTime() - request.responseTime) / 1000;
+		Message timed = request;
+		if (request.hedge != null && request.hedge.winner() != null) {
+			timed = request.hedge.winner();
+			timed.responseTime = request.responseTime;
+		}
+		if (!request.isAdmin) {
+			this.stats.record(timed);
+		}
+	}
+
+	// closes connection of memaslap client, its requests are taken out of
+	// the table so their late responses are dropped, request buffers may
+	// still be used by clients of memcached, so we leave them to GC
+	private void close(SelectionKey key) throws IOException {
+		ClientConnection connection = (ClientConnection) key.attachment();
+		for (Message request : connection.requests) {
+			this.inFlight.remove(request);
+			this.bufferPool.release(request.response);
+			request.response = null;
+		}
+		connection.requests.clear();
+		key.cancel();
+		key.channel().close();
 	}
 }
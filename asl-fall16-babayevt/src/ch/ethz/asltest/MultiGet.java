@@ -0,0 +1,96 @@
+package ch.ethz.asltest;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// collects responses of sub requests of one multi key GET, every server
+// gets one sub request with its keys and when the last response arrives
+// VALUE blocks of all of them are merged into one response with one END
+public class MultiGet {
+
+	// original request of memaslap client
+	private Message request;
+
+	private BufferPool bufferPool;
+
+	// response of every sub request, indexed by its partIndex
+	private ByteBuffer[] parts;
+
+	private AtomicInteger remaining;
+
+	public MultiGet(Message request, int numParts, BufferPool bufferPool) {
+		this.request = request;
+		this.bufferPool = bufferPool;
+		this.parts = new ByteBuffer[numParts];
+		this.remaining = new AtomicInteger(numParts);
+	}
+
+	// called by client thread which received response of one sub request
+	public void complete(Message part, ByteBuffer response) {
+		this.parts[part.partIndex] = response;
+		// sub request is not needed anymore
+		this.bufferPool.release(part.data);
+		part.data = null;
+
+		// times of the slowest sub request go to the log
+		synchronized (this) {
+			this.request.queueTime = Math.max(this.request.queueTime,
+					part.queueTime);
+			this.request.processingTime = Math.max(
+					this.request.processingTime, part.processingTime);
+			if (!part.successFlag) {
+				this.request.successFlag = false;
+			}
+		}
+
+		// decrement publishes our part to the thread that merges
+		if (this.remaining.decrementAndGet() == 0) {
+			this.request.server.send(this.request.id, this.merge());
+		}
+	}
+
+	private ByteBuffer merge() {
+		int size = GetResponse.END.length;
+		for (int i = 0; i < this.parts.length; i++) {
+			// if one server failed, whole request gets its error
+			if (!endsWithEnd(this.parts[i])) {
+				ByteBuffer error = this.parts[i];
+				this.parts[i] = null;
+				this.releaseParts();
+				return error;
+			}
+			size += this.parts[i].remaining() - GetResponse.END.length;
+		}
+
+		ByteBuffer merged = this.bufferPool.acquire(size);
+		for (int i = 0; i < this.parts.length; i++) {
+			ByteBuffer part = this.parts[i];
+			part.limit(part.limit() - GetResponse.END.length);
+			merged.put(part);
+		}
+		merged.put(GetResponse.END);
+		merged.flip();
+		this.releaseParts();
+		return merged;
+	}
+
+	private void releaseParts() {
+		for (int i = 0; i < this.parts.length; i++) {
+			this.bufferPool.release(this.parts[i]);
+			this.parts[i] = null;
+		}
+	}
+
+	private static boolean endsWithEnd(ByteBuffer response) {
+		int offset = response.limit() - GetResponse.END.length;
+		if (offset < response.position()) {
+			return false;
+		}
+		for (int i = 0; i < GetResponse.END.length; i++) {
+			if (response.get(offset + i) != GetResponse.END[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,94 @@
+package ch.ethz.asltest;
+
+import java.nio.ByteBuffer;
+
+// first 64 bits of MurmurHash3 x64_128 (seed 0), much cheaper than MD5
+// and good enough for spreading keys, it has no state so it is thread safe
+public class Murmur3Hash implements KeyHash {
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	public long hash(ByteBuffer data, int offset, int length) {
+		long h1 = 0;
+		long h2 = 0;
+
+		// body, blocks of 16 bytes read as two little endian longs
+		int blocks = length / 16;
+		for (int i = 0; i < blocks; i++) {
+			long k1 = getLong(data, offset + i * 16);
+			long k2 = getLong(data, offset + i * 16 + 8);
+
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		// tail, up to 15 remaining bytes
+		int tail = offset + blocks * 16;
+		long k1 = 0;
+		long k2 = 0;
+		for (int i = (length & 15) - 1; i >= 8; i--) {
+			k2 ^= (long) (data.get(tail + i) & 0xff) << ((i - 8) * 8);
+		}
+		for (int i = Math.min(length & 15, 8) - 1; i >= 0; i--) {
+			k1 ^= (long) (data.get(tail + i) & 0xff) << (i * 8);
+		}
+		if (k2 != 0) {
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+		}
+		if (k1 != 0) {
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+		}
+
+		// finalization
+		h1 ^= length;
+		h2 ^= length;
+
+		h1 += h2;
+		h2 += h1;
+
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+
+		h1 += h2;
+		return h1;
+	}
+
+	private static long getLong(ByteBuffer data, int offset) {
+		long value = 0;
+		for (int i = 7; i >= 0; i--) {
+			value = (value << 8) | (data.get(offset + i) & 0xff);
+		}
+		return value;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
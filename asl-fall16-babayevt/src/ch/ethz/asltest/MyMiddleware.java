@@ -1,5 +1,6 @@
 package ch.ethz.asltest;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
@@ -16,24 +17,64 @@ public class MyMiddleware implements Runnable {
 
 	private int writeToCount;
 
+	private MiddlewareConfig config;
+
 	public MyMiddleware(String myIp, int myPort, List<String> mcAddresses,
-			int numThreadsPTP, int writeToCount) {
+			int numThreadsPTP, int writeToCount, MiddlewareConfig config) {
 		this.myIp = myIp;
 		this.myPort = myPort;
 		this.mcAddresses = mcAddresses;
 		this.numThreadsPTP = numThreadsPTP;
 		this.writeToCount = writeToCount;
-;	}
+		this.config = config;
+	}
 
 	public void run() {
-		// initialize messageProcessor and mwServer and start thread for them
-		// these are first actions of our MiddleWare
+		// initialize messageProcessor, selector threads and acceptor and
+		// start threads for them, these are first actions of our MiddleWare
 		try {
 			MessageProcessor messageProcessor = new MessageProcessor(
-					mcAddresses, numThreadsPTP, writeToCount);
-			MiddlewareServer mwServer = new MiddlewareServer(myIp, myPort,
-					messageProcessor, messageProcessor.loggerMap);
-			new Thread(mwServer, "ServerThread").start();
+					mcAddresses, numThreadsPTP, writeToCount, config);
+
+			// each selector thread owns its own connections and its own
+			// latency stats, so they do not share any state except
+			// messageProcessor
+			List<MiddlewareServer> mwServers = new ArrayList<MiddlewareServer>();
+			List<LatencyStats> stats = new ArrayList<LatencyStats>();
+			messageProcessor.statsCommand = new StatsCommand(stats,
+					messageProcessor);
+			// only keys with replicas can be hedged
+			if (config.hedgePercentile > 0 && writeToCount > 1) {
+				messageProcessor.hedger = new Hedger(messageProcessor, stats,
+						config.hedgePercentile, config.hedgeBudget);
+			}
+			for (int i = 0; i < config.numSelectors; i++) {
+				LatencyStats serverStats = new LatencyStats(Cluster.MAX_SERVERS);
+				MiddlewareServer mwServer = new MiddlewareServer(
+						messageProcessor, messageProcessor.inFlight,
+						messageProcessor.bufferPool, serverStats, config);
+				stats.add(serverStats);
+				mwServers.add(mwServer);
+				new Thread(mwServer, "ServerThread" + i).start();
+			}
+
+			// selector threads are all there, hedger reads their stats
+			if (messageProcessor.hedger != null) {
+				new Thread(messageProcessor.hedger, "HedgeThread").start();
+			}
+
+			// health monitor reads them as well, for slow answers
+			if (config.backendTimeout > 0) {
+				new Thread(new HealthMonitor(messageProcessor, stats,
+						config.backendTimeout), "HealthThread").start();
+			}
+
+			new Thread(new LatencyReporter(stats, messageProcessor,
+					config.statsInterval),
+					"ReporterThread").start();
+
+			new Thread(new MiddlewareAcceptor(myIp, myPort, mwServers),
+					"AcceptorThread").start();
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (NoSuchAlgorithmException e) {
@@ -0,0 +1,300 @@
+package ch.ethz.asltest;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// optional cache of whole responses to single key GETs inside the
+// middleware, hot keys are answered by selector thread without going
+// to memcached at all
+// cache is split into segments by hash of the key, each segment has its
+// own lock and is a segmented LRU: new keys go to probation part, a key
+// hit there is promoted to protected part, keys falling out of protected
+// part get one more chance in probation, so a scan of many cold keys
+// cannot push hot keys out
+// every SET or DELETE invalidates its key when it arrives and again when
+// memcached answered it, and a GET response is only cached if no key of
+// its segment was invalidated while the GET was on its way, so replicated
+// writes never leave a stale value behind
+public class NearCache {
+
+	private static final int NUM_SEGMENTS = 16;
+
+	// protected part may use this share of a segment, probation the rest
+	private static final double PROTECTED_SHARE = 0.8;
+
+	// rough memory of entry and map node besides key and value bytes
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private Segment[] segments = new Segment[NUM_SEGMENTS];
+
+	public NearCache(long maxBytes) {
+		for (int i = 0; i < NUM_SEGMENTS; i++) {
+			this.segments[i] = new Segment(maxBytes / NUM_SEGMENTS);
+		}
+	}
+
+	// returns cached response for request, or null on a miss, then
+	// request remembers generation of its segment for fill()
+	public byte[] lookup(Message request) {
+		int keyStart = keyStart(request.data);
+		if (keyStart == -1) {
+			return null;
+		}
+		int keyEnd = MessageProcessor.tokenEnd(request.data, keyStart);
+		int hash = hash(request.data, keyStart, keyEnd);
+		Segment segment = this.segmentOf(hash);
+		synchronized (segment) {
+			segment.probe.set(request.data, keyStart, keyEnd, hash);
+			Entry entry = segment.protectedPart.get(segment.probe);
+			if (entry != null) {
+				return entry.value;
+			}
+			entry = segment.probation.remove(segment.probe);
+			if (entry != null) {
+				segment.promote(entry);
+				return entry.value;
+			}
+			request.cacheStamp = segment.generation;
+			return null;
+		}
+	}
+
+	// called with response of memcached to a GET that missed the cache
+	public void fill(Message request, ByteBuffer response) {
+		if (request.cacheStamp == -1 || !isSingleValue(response)) {
+			return;
+		}
+		int keyStart = keyStart(request.data);
+		int keyEnd = MessageProcessor.tokenEnd(request.data, keyStart);
+		int hash = hash(request.data, keyStart, keyEnd);
+		Segment segment = this.segmentOf(hash);
+
+		byte[] key = new byte[keyEnd - keyStart];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = request.data.get(keyStart + i);
+		}
+		byte[] value = new byte[response.remaining()];
+		for (int i = 0; i < value.length; i++) {
+			value[i] = response.get(response.position() + i);
+		}
+
+		synchronized (segment) {
+			// key may have been written meanwhile, our value is then stale
+			if (segment.generation != request.cacheStamp) {
+				return;
+			}
+			segment.add(new Entry(new Key(key, hash), value));
+		}
+	}
+
+	// called with every request that changes memcached
+	public void invalidate(Message request) {
+		int keyStart = MessageProcessor.tokenStart(request.data,
+				MessageProcessor.tokenEnd(request.data, 0));
+		int keyEnd = MessageProcessor.tokenEnd(request.data, keyStart);
+		int hash = hash(request.data, keyStart, keyEnd);
+		Segment segment = this.segmentOf(hash);
+		synchronized (segment) {
+			segment.generation++;
+			segment.probe.set(request.data, keyStart, keyEnd, hash);
+			Entry entry = segment.protectedPart.remove(segment.probe);
+			if (entry != null) {
+				segment.protectedBytes -= entry.size;
+			}
+			entry = segment.probation.remove(segment.probe);
+			if (entry != null) {
+				segment.probationBytes -= entry.size;
+			}
+		}
+	}
+
+	private Segment segmentOf(int hash) {
+		return this.segments[(hash ^ (hash >>> 16)) & (NUM_SEGMENTS - 1)];
+	}
+
+	// start of the key if request is "get <key>\r\n" with exactly one key,
+	// "gets" is never cached since its cas value changes with every write
+	private static int keyStart(ByteBuffer data) {
+		if (data.limit() < 4 || data.get(0) != 'g' || data.get(1) != 'e'
+				|| data.get(2) != 't' || data.get(3) != ' ') {
+			return -1;
+		}
+		int keyStart = MessageProcessor.tokenStart(data, 3);
+		int keyEnd = MessageProcessor.tokenEnd(data, keyStart);
+		if (keyEnd == keyStart || MessageProcessor.tokenStart(data, keyEnd)
+				!= MessageProcessor.lineEnd(data)) {
+			return -1;
+		}
+		return keyStart;
+	}
+
+	// only hits with one VALUE block are cached, misses and errors are not
+	private static boolean isSingleValue(ByteBuffer response) {
+		int start = response.position();
+		if (GetResponse.isMiss(response, start)) {
+			return false;
+		}
+		int lineEnd = GetResponse.lineEnd(response, start, response.limit());
+		int bytes = GetResponse.valueLength(response, start, lineEnd);
+		return bytes >= 0
+				&& lineEnd + 2 + bytes + 2 + GetResponse.END.length == response
+						.limit();
+	}
+
+	private static int hash(ByteBuffer data, int from, int to) {
+		int hash = 1;
+		for (int i = from; i < to; i++) {
+			hash = 31 * hash + data.get(i);
+		}
+		return hash;
+	}
+
+	// key of a cached entry, probe is a key that only points into a
+	// request buffer, so lookups do not copy the key
+	private static class Key {
+		private byte[] bytes;
+		private ByteBuffer data;
+		private int from;
+		private int to;
+		private int hash;
+
+		Key() {
+		}
+
+		Key(byte[] bytes, int hash) {
+			this.bytes = bytes;
+			this.to = bytes.length;
+			this.hash = hash;
+		}
+
+		void set(ByteBuffer data, int from, int to, int hash) {
+			this.data = data;
+			this.from = from;
+			this.to = to;
+			this.hash = hash;
+		}
+
+		byte at(int i) {
+			return this.bytes != null ? this.bytes[i] : this.data.get(this.from + i);
+		}
+
+		int length() {
+			return this.to - this.from;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) object;
+			if (other.hash != this.hash || other.length() != this.length()) {
+				return false;
+			}
+			for (int i = 0; i < this.length(); i++) {
+				if (other.at(i) != this.at(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static class Entry {
+		private Key key;
+		private byte[] value;
+		private long size;
+
+		Entry(Key key, byte[] value) {
+			this.key = key;
+			this.value = value;
+			this.size = key.length() + value.length + ENTRY_OVERHEAD;
+		}
+	}
+
+	// one lock and one segmented LRU, both parts keep their least
+	// recently used entry first
+	private static class Segment {
+		private long maxBytes;
+		private long maxProtectedBytes;
+
+		private LinkedHashMap<Key, Entry> probation = new LinkedHashMap<Key, Entry>(
+				16, 0.75f, true);
+		private LinkedHashMap<Key, Entry> protectedPart = new LinkedHashMap<Key, Entry>(
+				16, 0.75f, true);
+		private long probationBytes = 0;
+		private long protectedBytes = 0;
+
+		// bumped by every invalidation in this segment
+		private long generation = 0;
+
+		private Key probe = new Key();
+
+		Segment(long maxBytes) {
+			this.maxBytes = maxBytes;
+			this.maxProtectedBytes = (long) (maxBytes * PROTECTED_SHARE);
+		}
+
+		// new key goes to probation, if it is already cached its value
+		// is replaced where it is
+		void add(Entry entry) {
+			Entry old = this.protectedPart.remove(entry.key);
+			if (old != null) {
+				this.protectedBytes -= old.size;
+				this.protectedPart.put(entry.key, entry);
+				this.protectedBytes += entry.size;
+				this.shrink();
+				return;
+			}
+			old = this.probation.remove(entry.key);
+			if (old != null) {
+				this.probationBytes -= old.size;
+			}
+			if (entry.size > this.maxBytes) {
+				return;
+			}
+			this.probation.put(entry.key, entry);
+			this.probationBytes += entry.size;
+			this.shrink();
+		}
+
+		// entry was hit in probation (and already removed from it)
+		void promote(Entry entry) {
+			this.probationBytes -= entry.size;
+			this.protectedPart.put(entry.key, entry);
+			this.protectedBytes += entry.size;
+			this.shrink();
+		}
+
+		// demotes least recently used protected entries and then evicts
+		// least recently used probation entries until we fit again
+		private void shrink() {
+			Iterator<Map.Entry<Key, Entry>> demoted = this.protectedPart
+					.entrySet().iterator();
+			while (this.protectedBytes > this.maxProtectedBytes
+					&& demoted.hasNext()) {
+				Entry entry = demoted.next().getValue();
+				demoted.remove();
+				this.protectedBytes -= entry.size;
+				this.probation.put(entry.key, entry);
+				this.probationBytes += entry.size;
+			}
+
+			Iterator<Map.Entry<Key, Entry>> evicted = this.probation
+					.entrySet().iterator();
+			while (this.probationBytes + this.protectedBytes > this.maxBytes
+					&& evicted.hasNext()) {
+				Entry entry = evicted.next().getValue();
+				evicted.remove();
+				this.probationBytes -= entry.size;
+			}
+		}
+	}
+}
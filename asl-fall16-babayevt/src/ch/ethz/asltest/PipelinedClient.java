@@ -0,0 +1,606 @@
+package ch.ethz.asltest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// one thread of this class serves all GET requests of one memcached server
+// it keeps many requests in flight on a few non blocking connections,
+// memcached answers requests of a connection in the order they were
+// written, so responses are matched with a FIFO of written requests
+// in binary mode (-b binary) every key is asked with GETKQ, only the last
+// key of a request with GETK, so misses cost nothing on the wire and
+// response frames are checked against opaque of their request
+public class PipelinedClient implements Runnable {
+
+	// never keep more than this many requests in flight on one connection
+	private static final int MAX_IN_FLIGHT = 1024;
+
+	// at most this many requests are written with one gathering write
+	private static final int MAX_BATCH = 64;
+
+	// read buffer of every connection, it grows for bigger responses
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	// how often a retired client looks if it is done, in milliseconds
+	private static final long RETIRE_CHECK = 10;
+
+	// a broken connection is opened again at most this often, in
+	// nanoseconds
+	private static final long RECONNECT_INTERVAL = 100000000L;
+
+	private String hostAddress;
+
+	private int port;
+
+	// main queue passed by messageProcessor
+	private BlockingQueue<Message> queue;
+
+	// responses are copied into buffers of this pool and handed
+	// to mwServer, it releases them after writing
+	private BufferPool bufferPool;
+
+	private Selector selector;
+
+	private List<Connection> connections = new ArrayList<Connection>();
+
+	// true while our thread is about to sleep in select(), so
+	// messageProcessor wakes us up only when it is needed
+	private AtomicBoolean sleeping = new AtomicBoolean(false);
+
+	// reused for every gathering write
+	private ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+
+	// nanoTime after which a retired client takes no more requests,
+	// 0 while client is in use
+	private volatile long retireAt = 0;
+
+	// binary protocol to memcached instead of text
+	private boolean binary;
+
+	private int numConnections;
+
+	// failed and timed out requests are reported here
+	private BackendHealth health;
+
+	// connection whose oldest request got no response for this many
+	// milliseconds has failed, also limits connect, 0 waits forever (-x)
+	private int timeoutMillis;
+
+	// nanoTime of next try to open broken connections again
+	private long reconnectAt = 0;
+
+	public PipelinedClient(String hostAddress, int port, int numConnections,
+			BlockingQueue<Message> queue, BufferPool bufferPool, boolean binary,
+			BackendHealth health, int timeoutMillis) throws IOException {
+		this.binary = binary;
+		this.hostAddress = hostAddress;
+		this.port = port;
+		this.numConnections = numConnections;
+		this.queue = queue;
+		this.bufferPool = bufferPool;
+		this.health = health;
+		this.timeoutMillis = timeoutMillis;
+		this.selector = Selector.open();
+
+		for (int i = 0; i < numConnections; i++) {
+			this.open();
+		}
+	}
+
+	private void open() throws IOException {
+		SocketChannel socketChannel = SocketChannel.open();
+		try {
+			// connect in blocking mode, afterwards we never block again
+			socketChannel.socket().connect(new InetSocketAddress(InetAddress
+					.getByName(this.hostAddress), this.port),
+					this.timeoutMillis);
+			socketChannel.configureBlocking(false);
+		} catch (IOException e) {
+			socketChannel.close();
+			throw e;
+		}
+
+		Connection connection = new Connection(socketChannel,
+				this.bufferPool.acquire(READ_BUFFER_SIZE));
+		connection.key = socketChannel.register(this.selector,
+				SelectionKey.OP_READ, connection);
+		this.connections.add(connection);
+	}
+
+	// called by messageProcessor after it put request to our queue
+	public void wakeup() {
+		if (this.sleeping.compareAndSet(true, false)) {
+			this.selector.wakeup();
+		}
+	}
+
+	// called when server left the cluster, requests queued until stopAt
+	// are still served, then connections are closed and thread ends
+	public void retire(long stopAt) {
+		this.retireAt = stopAt;
+		this.selector.wakeup();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				if (this.retireAt != 0 && this.isDone()) {
+					this.close();
+					return;
+				}
+
+				// flag is set before we look at the queue, so request that
+				// comes after our look always wakes the selector up
+				this.sleeping.set(true);
+				this.dispatch();
+				if (this.retireAt != 0) {
+					// nobody wakes a retired client, it checks by itself
+					this.selector.select(RETIRE_CHECK);
+				} else if (this.timeoutMillis > 0) {
+					// wake up in time to notice a server that went silent
+					this.selector.select(this.timeoutMillis);
+				} else {
+					this.selector.select();
+				}
+				this.sleeping.set(false);
+
+				Iterator<SelectionKey> selectedKeys = this.selector
+						.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+					Connection connection = (Connection) key.attachment();
+
+					if (key.isValid() && key.isReadable()) {
+						this.read(connection);
+					}
+					if (key.isValid() && key.isWritable()) {
+						this.flush(connection);
+					}
+				}
+
+				if (this.timeoutMillis > 0) {
+					this.checkTimeouts();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// moves requests from queue to connections and writes them
+	private void dispatch() throws IOException {
+		if (this.connections.size() < this.numConnections
+				&& this.retireAt == 0) {
+			this.reconnect();
+		}
+		// server was failed over or we cannot reach it, do not let
+		// requests wait for it
+		if (this.health.open || this.connections.isEmpty()) {
+			Message request;
+			while ((request = this.queue.poll()) != null) {
+				request.queueTime = (System.nanoTime() - request.queueTime) / 1000;
+				request.successFlag = false;
+				request.reply(RequestState.SERVER_ERROR);
+			}
+			return;
+		}
+
+		Connection connection;
+		while ((connection = this.leastLoaded()) != null) {
+			Message request = this.queue.poll();
+			if (request == null) {
+				break;
+			}
+			// finalize logging of queue time for request
+			long now = System.nanoTime();
+			request.queueTime = (now - request.queueTime) / 1000;
+			// waited too long, client already got an error, or other copy
+			// of a hedged GET was answered
+			if (request.expire(now) || request.superseded()) {
+				continue;
+			}
+			request.data.position(0);
+			if (this.binary) {
+				request.frame = BinaryProtocol.encodeGet(request.data,
+						connection.nextOpaque, this.bufferPool);
+				if (request.frame == null) {
+					request.successFlag = false;
+					request.reply(RequestState.ERROR);
+					continue;
+				}
+				connection.opaques.add(connection.nextOpaque++);
+			}
+			connection.unsent.add(request);
+		}
+
+		// backwards, flush() may fail a connection and remove it from the
+		// list, then no other connection is skipped
+		for (int i = this.connections.size() - 1; i >= 0; i--) {
+			connection = this.connections.get(i);
+			// if connection waits for OP_WRITE, selector will flush it
+			if (!connection.unsent.isEmpty()
+					&& (connection.key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+				this.flush(connection);
+			}
+		}
+	}
+
+	// opens broken connections again, not more often than
+	// RECONNECT_INTERVAL so a dead server does not keep us busy
+	private void reconnect() {
+		long now = System.nanoTime();
+		if (now < this.reconnectAt) {
+			return;
+		}
+		this.reconnectAt = now + RECONNECT_INTERVAL;
+		try {
+			while (this.connections.size() < this.numConnections) {
+				this.open();
+			}
+		} catch (IOException e) {
+			this.health.failure();
+		}
+	}
+
+	// connection that waits longer than timeout for its oldest response
+	// has failed, memcached is stalled or gone
+	private void checkTimeouts() {
+		long now = System.nanoTime();
+		for (int i = this.connections.size() - 1; i >= 0; i--) {
+			Connection connection = this.connections.get(i);
+			if (!connection.inFlight.isEmpty()
+					&& now - connection.progressAt > this.timeoutMillis * 1000000L) {
+				this.fail(connection, new SocketTimeoutException(
+						"memcached did not answer in " + this.timeoutMillis
+								+ " ms"));
+			}
+		}
+	}
+
+	// retired client is done when no request can come anymore and all
+	// taken ones were answered
+	private boolean isDone() {
+		if (System.nanoTime() < this.retireAt || !this.queue.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < this.connections.size(); i++) {
+			if (this.connections.get(i).load() > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void close() throws IOException {
+		for (int i = 0; i < this.connections.size(); i++) {
+			this.connections.get(i).socketChannel.close();
+			this.bufferPool.release(this.connections.get(i).readBuffer);
+		}
+		this.selector.close();
+	}
+
+	// open connection with the fewest requests in flight, or null
+	// if all of them are full
+	private Connection leastLoaded() {
+		Connection best = null;
+		for (int i = 0; i < this.connections.size(); i++) {
+			Connection connection = this.connections.get(i);
+			int load = connection.load();
+			if (load < MAX_IN_FLIGHT && (best == null || load < best.load())) {
+				best = connection;
+			}
+		}
+		return best;
+	}
+
+	// writes as many unsent requests as socket takes with gathering
+	// writes, if socket is full we wait for OP_WRITE
+	private void flush(Connection connection) throws IOException {
+		while (!connection.unsent.isEmpty()) {
+			int n = 0;
+			for (Message request : connection.unsent) {
+				if (n == MAX_BATCH) {
+					break;
+				}
+				this.batch[n++] = this.binary ? request.frame : request.data;
+			}
+
+			try {
+				connection.socketChannel.write(this.batch, 0, n);
+			} catch (IOException e) {
+				this.fail(connection, e);
+				return;
+			}
+			// if not even the whole batch went out, socket buffer is full
+			boolean socketFull = this.batch[n - 1].hasRemaining();
+
+			// fully written requests now wait for their responses
+			while (!connection.unsent.isEmpty()
+					&& !this.written(connection.unsent.peek()).hasRemaining()) {
+				Message request = connection.unsent.poll();
+				if (this.binary) {
+					this.bufferPool.release(request.frame);
+					request.frame = null;
+				}
+				// start logging processing time
+				request.processingTime = System.nanoTime();
+				if (connection.inFlight.isEmpty()) {
+					connection.progressAt = request.processingTime;
+				}
+				connection.inFlight.add(request);
+			}
+
+			if (socketFull) {
+				// continue when socket buffer drains
+				connection.key.interestOps(SelectionKey.OP_READ
+						| SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+		connection.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private ByteBuffer written(Message request) {
+		return this.binary ? request.frame : request.data;
+	}
+
+	private void read(Connection connection) {
+		ByteBuffer readBuffer = connection.readBuffer;
+
+		int numRead;
+		try {
+			numRead = connection.socketChannel.read(readBuffer);
+		} catch (IOException e) {
+			this.fail(connection, e);
+			return;
+		}
+		if (numRead == -1) {
+			this.fail(connection, new IOException("memcached closed connection"));
+			return;
+		}
+
+		// we may have several responses, and part of the next one
+		readBuffer.flip();
+		long time = System.nanoTime();
+		if (numRead > 0) {
+			connection.progressAt = time;
+		}
+		int start = 0;
+		if (this.binary) {
+			start = this.readFrames(connection, readBuffer, time);
+			if (start == -1) {
+				return;
+			}
+		} else {
+			int end;
+			while ((end = GetResponse.end(readBuffer, start, readBuffer.limit())) != -1) {
+				Message request = connection.inFlight.poll();
+				if (request != null
+						&& this.respond(request, readBuffer, start, end, time)) {
+					// buffer went to the client, we continue in a new one
+					connection.readBuffer = this.bufferPool
+							.acquire(READ_BUFFER_SIZE);
+					return;
+				}
+				start = end;
+			}
+		}
+		readBuffer.position(start);
+		readBuffer.compact();
+
+		// response is bigger than our buffer, continue in a buffer that
+		// holds all of it if its VALUE lines (or frame header) tell how
+		// big it is
+		if (!readBuffer.hasRemaining()) {
+			readBuffer.flip();
+			int needed = this.needed(readBuffer);
+			ByteBuffer bigger = this.bufferPool.acquire(Math.max(needed,
+					readBuffer.capacity() * 2));
+			bigger.put(readBuffer);
+			this.bufferPool.release(readBuffer);
+			connection.readBuffer = bigger;
+		}
+	}
+
+	// bytes the response (or frame) at start of buffer takes at least,
+	// -1 if we cannot tell yet
+	private int needed(ByteBuffer readBuffer) {
+		if (!this.binary) {
+			return GetResponse.minimumLength(readBuffer, 0, readBuffer.limit());
+		}
+		if (readBuffer.limit() < BinaryProtocol.HEADER_LENGTH) {
+			return -1;
+		}
+		return BinaryProtocol.HEADER_LENGTH
+				+ BinaryProtocol.bodyLength(readBuffer, 0);
+	}
+
+	// handles complete binary frames in buffer, hits are collected as text
+	// until GETK of the last key ends the request, returns where the
+	// incomplete frame starts, or -1 if connection failed
+	private int readFrames(Connection connection, ByteBuffer readBuffer,
+			long time) {
+		int start = 0;
+		int end;
+		while ((end = BinaryProtocol.end(readBuffer, start, readBuffer.limit())) != -1) {
+			Message request = connection.inFlight.peek();
+			if (request == null
+					|| BinaryProtocol.opaque(readBuffer, start) != (int) connection.opaques
+							.peek()) {
+				this.fail(connection, new IOException(
+						"binary response does not match its request"));
+				return -1;
+			}
+
+			int status = BinaryProtocol.status(readBuffer, start);
+			if (status == BinaryProtocol.SUCCESS) {
+				this.addValue(connection, readBuffer, start,
+						request.data.get(3) == 's');
+			} else if (status != BinaryProtocol.KEY_NOT_FOUND) {
+				connection.error = true;
+			}
+
+			if (BinaryProtocol.opcode(readBuffer, start) != BinaryProtocol.GETKQ) {
+				connection.inFlight.poll();
+				connection.opaques.poll();
+				this.respondValues(connection, request, time);
+			}
+			start = end;
+		}
+		return start;
+	}
+
+	// appends text of a hit to values of the oldest request
+	private void addValue(Connection connection, ByteBuffer frame, int start,
+			boolean withCas) {
+		// room for END is kept as well
+		int needed = BinaryProtocol.valueTextLength(frame, start)
+				+ GetResponse.END.length;
+		ByteBuffer values = connection.values;
+		if (values == null) {
+			values = this.bufferPool.acquire(needed);
+		} else if (values.remaining() < needed) {
+			ByteBuffer bigger = this.bufferPool.acquire(Math.max(
+					values.capacity() * 2, values.position() + needed));
+			values.flip();
+			bigger.put(values);
+			this.bufferPool.release(values);
+			values = bigger;
+		}
+		BinaryProtocol.appendValue(frame, start, withCas, values);
+		connection.values = values;
+	}
+
+	// text response of a request made of collected values
+	private void respondValues(Connection connection, Message request,
+			long time) {
+		request.processingTime = (time - request.processingTime) / 1000;
+		this.health.success(request.processingTime);
+		ByteBuffer response = connection.values;
+		connection.values = null;
+		if (connection.error) {
+			connection.error = false;
+			this.bufferPool.release(response);
+			request.successFlag = false;
+			request.reply(RequestState.MEMCACHED_ERROR);
+			return;
+		}
+		if (response == null) {
+			// END without VALUE is an unsuccessful GET
+			request.successFlag = false;
+			response = this.bufferPool.wrap(GetResponse.END);
+		} else {
+			response.put(GetResponse.END);
+			response.flip();
+		}
+		request.reply(response);
+	}
+
+	// copies one response to a pooled buffer and sends it to memaslap
+	// client, a big response that fills the whole buffer grown for it is
+	// sent without copy, true is returned then and buffer is not ours
+	// anymore
+	private boolean respond(Message request, ByteBuffer readBuffer,
+			int start, int end, long time) {
+		// finalize logging of processing time
+		request.processingTime = (time - request.processingTime) / 1000;
+		this.health.success(request.processingTime);
+		// END without VALUE is an unsuccessful GET
+		if (GetResponse.isMiss(readBuffer, start)) {
+			request.successFlag = false;
+		}
+
+		if (start == 0 && end == readBuffer.limit()
+				&& readBuffer.capacity() > READ_BUFFER_SIZE) {
+			request.reply(readBuffer);
+			return true;
+		}
+
+		ByteBuffer response = this.bufferPool.acquire(end - start);
+		int limit = readBuffer.limit();
+		readBuffer.limit(end);
+		readBuffer.position(start);
+		response.put(readBuffer);
+		readBuffer.limit(limit);
+		response.flip();
+
+		// send response back to memaslap client
+		request.reply(response);
+		return false;
+	}
+
+	// connection is broken, clients of its requests get an error instead
+	// of waiting forever and connection is not used anymore
+	private void fail(Connection connection, IOException e) {
+		e.printStackTrace();
+		this.health.failure();
+		connection.key.cancel();
+		try {
+			connection.socketChannel.close();
+		} catch (IOException closeException) {
+			closeException.printStackTrace();
+		}
+		this.connections.remove(connection);
+
+		for (Message request : connection.inFlight) {
+			request.successFlag = false;
+			request.reply(RequestState.SERVER_ERROR);
+		}
+		for (Message request : connection.unsent) {
+			request.successFlag = false;
+			request.reply(RequestState.SERVER_ERROR);
+		}
+		connection.inFlight.clear();
+		connection.unsent.clear();
+		connection.opaques = new IdQueue();
+		this.bufferPool.release(connection.values);
+		connection.values = null;
+	}
+
+	// state of one connection to memcached
+	private static class Connection {
+		private SocketChannel socketChannel;
+		private SelectionKey key;
+		private ByteBuffer readBuffer;
+
+		// taken from queue, but not (completely) written yet
+		private ArrayDeque<Message> unsent = new ArrayDeque<Message>();
+
+		// written and waiting for response, in the order of writing
+		private ArrayDeque<Message> inFlight = new ArrayDeque<Message>();
+
+		// binary mode only: opaques of unsent and in flight requests in
+		// the same order, values found so far for the oldest request, and
+		// whether memcached answered one of its keys with an error
+		private IdQueue opaques = new IdQueue();
+		private int nextOpaque = 0;
+		private ByteBuffer values;
+		private boolean error = false;
+
+		// nanoTime of last response, or of the write that gave an idle
+		// connection something to wait for
+		private long progressAt;
+
+		Connection(SocketChannel socketChannel, ByteBuffer readBuffer) {
+			this.socketChannel = socketChannel;
+			this.readBuffer = readBuffer;
+		}
+
+		int load() {
+			return this.unsent.size() + this.inFlight.size();
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package ch.ethz.asltest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// one instance of this class is attached to every memaslap connection
+// it collects bytes across socket reads and cuts them into complete
+// memcached text protocol commands, so partial reads, big SET data blocks
+// and pipelined commands are all handled
+// a connection whose first byte is the binary protocol magic is cut into
+// binary frames instead, which are handed out as equal text commands
+public class RequestParser {
+
+	// request line longer than this is treated as a broken client
+	public static final int MAX_LINE_LENGTH = 8192;
+
+	// largest data block of a storage command, largest item of memcached
+	// (1 MB by default), bigger blocks are not buffered but skipped
+	public static final int MAX_DATA_LENGTH = 1 << 20;
+
+	// complete commands are copied into buffers of this pool
+	private BufferPool bufferPool;
+
+	// bytes we received but did not hand out as a command yet
+	private byte[] buffer = new byte[2048];
+
+	// start and end of unconsumed bytes in buffer
+	private int start = 0;
+	private int end = 0;
+
+	// set from the first byte of the connection
+	private boolean decided = false;
+	public boolean binary = false;
+
+	// opcode and opaque of the last binary frame handed out, and status
+	// of its response if it is answered by the middleware itself
+	public int opcode;
+	public int opaque;
+	public int status;
+
+	// where key of the last binary frame is in its command, so it is
+	// routed without looking for it in the text
+	public int keyStart;
+	public int keyLength;
+
+	// set if the last text command handed out had a data block over
+	// MAX_DATA_LENGTH, only its request line is handed out and the
+	// middleware answers it itself
+	public boolean tooLarge = false;
+
+	// bytes of such a data block (and its "\r\n") still to be skipped
+	private long skip = 0;
+
+	public RequestParser(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	// adds freshly read bytes (between position and limit) to our buffer
+	public void append(ByteBuffer data) {
+		int length = data.remaining();
+		if (this.end + length > this.buffer.length) {
+			int pending = this.end - this.start;
+			// grow only if moving pending bytes to the front is not enough
+			if (pending + length > this.buffer.length) {
+				byte[] bigger = new byte[Math.max(this.buffer.length * 2,
+						pending + length)];
+				System.arraycopy(this.buffer, this.start, bigger, 0, pending);
+				this.buffer = bigger;
+			} else {
+				System.arraycopy(this.buffer, this.start, this.buffer, 0,
+						pending);
+			}
+			this.start = 0;
+			this.end = pending;
+		}
+		data.get(this.buffer, this.end, length);
+		this.end += length;
+	}
+
+	// returns next complete command including its trailing "\r\n"
+	// (and data block for storage commands) in a pooled buffer ready
+	// to be read, or null if we still wait for more bytes
+	public ByteBuffer next() throws IOException {
+		if (!this.decided && this.end > this.start) {
+			this.decided = true;
+			this.binary = this.buffer[this.start] == BinaryProtocol.REQUEST;
+		}
+		if (this.binary) {
+			return this.nextFrame();
+		}
+
+		// data block of a rejected command is dropped as it comes in
+		if (this.skip > 0) {
+			int skipped = (int) Math.min(this.skip, this.end - this.start);
+			this.start += skipped;
+			this.skip -= skipped;
+			if (this.skip > 0) {
+				this.start = 0;
+				this.end = 0;
+				return null;
+			}
+		}
+		this.tooLarge = false;
+
+		int lineEnd = this.findLineEnd();
+		if (lineEnd == -1) {
+			if (this.end - this.start > MAX_LINE_LENGTH) {
+				throw new IOException("request line too long");
+			}
+			return null;
+		}
+
+		// request line ends right after "\r\n"
+		int commandEnd = lineEnd + 2;
+
+		// set, add, replace, append, prepend and cas commands are followed
+		// by a data block of <bytes> length terminated by "\r\n"
+		int dataEnd = -1;
+		if (this.isStorageCommand()) {
+			int bytes = this.dataLength(lineEnd);
+			if (bytes > MAX_DATA_LENGTH) {
+				// hand out request line alone, skip block behind it
+				this.tooLarge = true;
+				this.skip = bytes + 2L;
+			} else if (bytes >= 0) {
+				dataEnd = commandEnd + bytes;
+				commandEnd = dataEnd + 2;
+			}
+		}
+
+		if (commandEnd > this.end) {
+			return null;
+		}
+		// data block of exactly <bytes> length is followed by "\r\n",
+		// otherwise we lost track of where commands start
+		if (dataEnd != -1 && (this.buffer[dataEnd] != '\r'
+				|| this.buffer[dataEnd + 1] != '\n')) {
+			throw new IOException("bad data chunk");
+		}
+
+		ByteBuffer command = this.bufferPool.acquire(commandEnd - this.start);
+		command.put(this.buffer, this.start, commandEnd - this.start);
+		command.flip();
+		this.start = commandEnd;
+		if (this.start == this.end) {
+			this.start = 0;
+			this.end = 0;
+		}
+		return command;
+	}
+
+	// next() of binary connections, returns next complete frame turned
+	// into its text command, or an empty command for frames the
+	// middleware answers itself (noop, unknown commands)
+	private ByteBuffer nextFrame() throws IOException {
+		ByteBuffer frame = ByteBuffer.wrap(this.buffer);
+		if (this.end - this.start < BinaryProtocol.HEADER_LENGTH) {
+			return null;
+		}
+		if (this.buffer[this.start] != BinaryProtocol.REQUEST) {
+			throw new IOException("bad magic of binary frame");
+		}
+		// header alone may claim up to 4 GB, we would buffer all of it
+		long bodyLength = BinaryProtocol.bodyLength(frame, this.start) & 0xffffffffL;
+		if (bodyLength > BinaryProtocol.MAX_REQUEST_BODY) {
+			throw new IOException("binary frame too long");
+		}
+		int frameEnd = BinaryProtocol.end(frame, this.start, this.end);
+		if (frameEnd == -1) {
+			return null;
+		}
+
+		this.opcode = BinaryProtocol.opcode(frame, this.start);
+		this.opaque = BinaryProtocol.opaque(frame, this.start);
+		ByteBuffer command = BinaryProtocol.toText(frame, this.start,
+				this.bufferPool);
+		if (command == null) {
+			this.status = BinaryProtocol.directStatus(frame, this.start);
+			command = this.bufferPool.acquire(0);
+			command.flip();
+		} else {
+			this.keyStart = BinaryProtocol.commandName(frame, this.start).length
+					+ 1;
+			this.keyLength = BinaryProtocol.keyLength(frame, this.start);
+		}
+		this.start = frameEnd;
+		if (this.start == this.end) {
+			this.start = 0;
+			this.end = 0;
+		}
+		return command;
+	}
+
+	// position of "\r" of the first "\r\n" in unconsumed bytes
+	private int findLineEnd() {
+		for (int i = this.start; i < this.end - 1; i++) {
+			if (this.buffer[i] == '\r' && this.buffer[i + 1] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean isStorageCommand() {
+		return this.startsWith("set ") || this.startsWith("add ")
+				|| this.startsWith("replace ") || this.startsWith("append ")
+				|| this.startsWith("prepend ") || this.startsWith("cas ");
+	}
+
+	private boolean startsWith(String word) {
+		if (this.end - this.start < word.length()) {
+			return false;
+		}
+		for (int i = 0; i < word.length(); i++) {
+			if (this.buffer[this.start + i] != word.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// length of data block of storage command in unconsumed bytes, it
+	// looks like "<cmd> <key> <flags> <exptime> <bytes> ..." so this is
+	// its 5th token as a number, or -1 if that is malformed and memcached
+	// is left to answer the request line alone with an error
+	private int dataLength(int lineEnd) {
+		int token = 0;
+		int i = this.start;
+		while (i < lineEnd) {
+			while (i < lineEnd && this.buffer[i] == ' ') {
+				i++;
+			}
+			if (i == lineEnd) {
+				break;
+			}
+			if (token == 4) {
+				int bytes = 0;
+				int digits = 0;
+				while (i < lineEnd && this.buffer[i] != ' ') {
+					byte b = this.buffer[i++];
+					if (b < '0' || b > '9' || digits == 9) {
+						return -1;
+					}
+					bytes = bytes * 10 + (b - '0');
+					digits++;
+				}
+				return bytes;
+			}
+			while (i < lineEnd && this.buffer[i] != ' ') {
+				i++;
+			}
+			token++;
+		}
+		return -1;
+	}
+}
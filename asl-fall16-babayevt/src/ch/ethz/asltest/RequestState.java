@@ -1,14 +1,34 @@
 package ch.ethz.asltest;
 
 // intances of this class are used to track replication status of requests
-// also 3 static fields are available to send responses back to memaslap clients
-// from asynchronous client
+// also static fields are available to send responses back to memaslap clients
+// from asynchronous and pipelined clients
 public class RequestState {
 	public int nReplMade = 0;
 	public boolean allSuccess = true;
 	public boolean delete = false;
+	// replicas that stored the write, and if client got its answer
+	// already, in quorum mode that happens before nReplMade is complete
+	public int nAcked = 0;
+	public boolean replied = false;
 
 	public static final byte[] ERROR = new String("ERROR\r\n").getBytes();
 	public static final byte[] STORED = new String("STORED\r\n").getBytes();
 	public static final byte[] DELETED = new String("DELETED\r\n").getBytes();
+	public static final byte[] SERVER_ERROR = new String(
+			"SERVER_ERROR connection to memcached lost\r\n").getBytes();
+	// queue of the server was full and overload policy rejects requests
+	public static final byte[] OVERLOADED = new String(
+			"SERVER_ERROR middleware overloaded\r\n").getBytes();
+	// data block of storage command is over RequestParser.MAX_DATA_LENGTH
+	public static final byte[] TOO_LARGE = new String(
+			"SERVER_ERROR object too large for cache\r\n").getBytes();
+	// request waited in queue longer than allowed
+	public static final byte[] QUEUE_TIMEOUT = new String(
+			"SERVER_ERROR request timed out in queue\r\n").getBytes();
+	// memcached answered a binary GET with an error status
+	public static final byte[] MEMCACHED_ERROR = new String(
+			"SERVER_ERROR memcached error\r\n").getBytes();
+	// cluster command was applied
+	public static final byte[] OK = new String("OK\r\n").getBytes();
 }
\ No newline at end of file
@@ -0,0 +1,310 @@
+package ch.ethz.asltest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+// closed loop benchmark on one machine, instead of memaslap on client
+// hosts and memcached on server hosts: -f starts memcached stand-ins
+// inside this process, -M starts the middleware in front of them, and
+// -c load clients run against -s (or the middleware) for -d seconds
+// arguments after "--" are options of the middleware, as RunMW takes
+// them (e.g. -- -g threads -n 64)
+// every interval a row goes to TPS_trace.csv and RT_trace.csv, in the
+// same format as our trace_logs, so runs can be compared with them
+public class RunLoad {
+
+	static String server = null;
+	static int numClients = 3;
+	static int concurrency = 64;
+	static double getProportion = 0.99;
+	static int valueSize = 128;
+	static String keyDistribution = "uniform";
+	static int windowSize = 10000;
+	static int runSeconds = 60;
+	static int intervalSeconds = 5;
+	static String outputDir = ".";
+	static List<String> standInPorts = null;
+	static int serviceMicros = 0;
+	static int standInWorkers = 4;
+	static List<String> middleware = null;
+	static List<String> middlewareOptions = new ArrayList<String>();
+
+	public static void main(String[] args) throws Exception {
+
+		parseArguments(args);
+
+		// memcached stand-ins and middleware come up before any client
+		List<String> mcAddresses = new ArrayList<String>();
+		if (standInPorts != null) {
+			for (String port : standInPorts) {
+				MemcachedStandIn standIn = new MemcachedStandIn(
+						Integer.parseInt(port), serviceMicros, standInWorkers);
+				Thread thread = new Thread(standIn, "StandInAcceptor" + port);
+				thread.setDaemon(true);
+				thread.start();
+				mcAddresses.add("127.0.0.1:" + port);
+			}
+		}
+
+		if (middleware != null) {
+			// RunMW checks middleware options and exits on bad ones
+			List<String> mwArgs = new ArrayList<String>();
+			mwArgs.add("-l");
+			mwArgs.add("127.0.0.1");
+			mwArgs.add("-p");
+			mwArgs.add(middleware.get(0));
+			mwArgs.add("-t");
+			mwArgs.add(middleware.get(1));
+			mwArgs.add("-r");
+			mwArgs.add(middleware.get(2));
+			mwArgs.add("-m");
+			mwArgs.addAll(mcAddresses);
+			mwArgs.addAll(middlewareOptions);
+			RunMW.parseArguments(mwArgs.toArray(new String[mwArgs.size()]));
+			new MyMiddleware(RunMW.myIp, RunMW.myPort, RunMW.mcAddresses,
+					RunMW.numThreadsPTP, RunMW.writeToCount, RunMW.config)
+					.run();
+			server = "127.0.0.1:" + middleware.get(0);
+			// acceptor binds its port on its own thread
+			Thread.sleep(500);
+		}
+
+		String host = server.substring(0, server.lastIndexOf(':'));
+		int port = Integer.parseInt(server.substring(server.lastIndexOf(':') + 1));
+
+		List<LoadGenerator> generators = new ArrayList<LoadGenerator>();
+		CountDownLatch prefilled = new CountDownLatch(numClients * concurrency);
+		CountDownLatch start = new CountDownLatch(1);
+		for (int i = 1; i <= numClients; i++) {
+			LoadGenerator generator = new LoadGenerator(i, host, port,
+					concurrency, getProportion, valueSize, windowSize,
+					keyDistribution);
+			generator.start(prefilled, start);
+			generators.add(generator);
+		}
+		prefilled.await();
+		start.countDown();
+
+		report(generators);
+
+		for (LoadGenerator generator : generators) {
+			generator.stop();
+		}
+		// stand-ins and middleware never stop on their own
+		System.exit(0);
+	}
+
+	// writes one row per interval until run time is over
+	private static void report(List<LoadGenerator> generators)
+			throws IOException, InterruptedException {
+		BufferedWriter tps = new BufferedWriter(new FileWriter(new File(
+				outputDir, "TPS_trace.csv")));
+		BufferedWriter rt = new BufferedWriter(new FileWriter(new File(
+				outputDir, "RT_trace.csv")));
+		StringBuilder tpsHeader = new StringBuilder();
+		StringBuilder rtHeader = new StringBuilder();
+		StringBuilder tpsColumns = new StringBuilder("Time");
+		StringBuilder rtColumns = new StringBuilder("Time");
+		for (LoadGenerator generator : generators) {
+			tpsHeader.append(",Client ").append(generator.number);
+			rtHeader.append(",Client ").append(generator.number).append(',');
+			tpsColumns.append(",TPS");
+			rtColumns.append(",RT,STD");
+		}
+		writeLine(tps, tpsHeader.toString());
+		writeLine(tps, tpsColumns.toString());
+		writeLine(rt, rtHeader.toString());
+		writeLine(rt, rtColumns.toString());
+
+		long begin = System.nanoTime();
+		for (int time = intervalSeconds; time <= runSeconds; time += intervalSeconds) {
+			long sleep = begin + time * 1000000000L - System.nanoTime();
+			if (sleep > 0) {
+				Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+			}
+
+			StringBuilder tpsRow = new StringBuilder().append(time);
+			StringBuilder rtRow = new StringBuilder().append(time);
+			long ops = 0;
+			long misses = 0;
+			long errors = 0;
+			for (LoadGenerator generator : generators) {
+				LoadGenerator.Interval interval = generator.take();
+				tpsRow.append(',').append(interval.ops / intervalSeconds);
+				rtRow.append(',').append(Math.round(interval.meanMicros))
+						.append(',')
+						.append(String.format("%.2f", interval.stdMicros));
+				ops += interval.ops;
+				misses += interval.misses;
+				errors += interval.errors;
+			}
+			writeLine(tps, tpsRow.toString());
+			writeLine(rt, rtRow.toString());
+			System.out.println(time + "s: " + ops / intervalSeconds
+					+ " ops/s, " + misses + " get misses, " + errors
+					+ " errors");
+		}
+		tps.close();
+		rt.close();
+	}
+
+	private static void writeLine(BufferedWriter writer, String line)
+			throws IOException {
+		writer.write(line);
+		writer.newLine();
+		writer.flush();
+	}
+
+	private static void parseArguments(String[] args) {
+		Map<String, List<String>> params = new HashMap<>();
+
+		List<String> options = null;
+		for (int i = 0; i < args.length; i++) {
+			final String a = args[i];
+
+			// rest goes to the middleware
+			if (a.equals("--")) {
+				for (int j = i + 1; j < args.length; j++) {
+					middlewareOptions.add(args[j]);
+				}
+				break;
+			}
+
+			if (a.charAt(0) == '-') {
+				if (a.length() < 2) {
+					System.err.println("Error at argument " + a);
+					System.exit(1);
+				}
+
+				options = new ArrayList<String>();
+				params.put(a.substring(1), options);
+			} else if (options != null) {
+				options.add(a);
+			} else {
+				System.err.println("Illegal parameter usage");
+				System.exit(1);
+			}
+		}
+
+		if (params.size() == 0) {
+			printUsageWithError(null);
+			System.exit(1);
+		}
+
+		if (params.get("f") != null)
+			standInPorts = params.get("f");
+
+		if (params.get("M") != null) {
+			middleware = params.get("M");
+			if (middleware.size() != 3 || standInPorts == null) {
+				printUsageWithError("In-process middleware needs <ListenPort> <ThreadsInPool> <Replication> and stand-ins (-f)!");
+				System.exit(1);
+			}
+		} else if (!middlewareOptions.isEmpty()) {
+			printUsageWithError("Middleware options (after --) need an in-process middleware (-M)!");
+			System.exit(1);
+		} else if (params.get("s") != null)
+			server = params.get("s").get(0);
+		else if (standInPorts != null)
+			server = "127.0.0.1:" + standInPorts.get(0);
+		else {
+			printUsageWithError("Provide the server to load (e.g. 127.0.0.1:11212), or start one with -f/-M!");
+			System.exit(1);
+		}
+
+		if (params.get("c") != null)
+			numClients = Integer.parseInt(params.get("c").get(0));
+
+		if (params.get("n") != null)
+			concurrency = Integer.parseInt(params.get("n").get(0));
+
+		if (numClients < 1 || concurrency < 1) {
+			printUsageWithError("Provide at least one client and one connection per client!");
+			System.exit(1);
+		}
+
+		if (params.get("g") != null)
+			getProportion = Double.parseDouble(params.get("g").get(0));
+
+		if (getProportion < 0 || getProportion > 1) {
+			printUsageWithError("GET proportion must be between 0 and 1!");
+			System.exit(1);
+		}
+
+		if (params.get("v") != null)
+			valueSize = Integer.parseInt(params.get("v").get(0));
+
+		if (valueSize < 0) {
+			printUsageWithError("Value size cannot be negative!");
+			System.exit(1);
+		}
+
+		if (params.get("k") != null)
+			keyDistribution = params.get("k").get(0);
+
+		if (!keyDistribution.equals("uniform")
+				&& !keyDistribution.equals("zipf")) {
+			printUsageWithError("Key distribution must be uniform or zipf!");
+			System.exit(1);
+		}
+
+		// like memaslap, "10k" is a window of 10000 keys
+		if (params.get("w") != null) {
+			String window = params.get("w").get(0);
+			if (window.endsWith("k")) {
+				windowSize = Integer.parseInt(window.substring(0,
+						window.length() - 1)) * 1000;
+			} else {
+				windowSize = Integer.parseInt(window);
+			}
+		}
+
+		if (windowSize < 1) {
+			printUsageWithError("Key window must hold at least one key!");
+			System.exit(1);
+		}
+
+		if (params.get("d") != null)
+			runSeconds = Integer.parseInt(params.get("d").get(0));
+
+		if (params.get("i") != null)
+			intervalSeconds = Integer.parseInt(params.get("i").get(0));
+
+		if (intervalSeconds < 1 || runSeconds < intervalSeconds) {
+			printUsageWithError("Run time must be at least one report interval of at least one second!");
+			System.exit(1);
+		}
+
+		if (params.get("o") != null)
+			outputDir = params.get("o").get(0);
+
+		if (params.get("x") != null)
+			serviceMicros = Integer.parseInt(params.get("x").get(0));
+
+		if (params.get("W") != null)
+			standInWorkers = Integer.parseInt(params.get("W").get(0));
+
+		if (serviceMicros < 0 || standInWorkers < 1) {
+			printUsageWithError("Stand-in needs a non negative service time and at least one worker!");
+			System.exit(1);
+		}
+	}
+
+	private static void printUsageWithError(String errorMessage) {
+		System.err.println();
+		System.err
+				.println("Usage: -s <ServerIP:Port> | -f <StandInPort> <StandInPort2> ... [-M <MiddlewarePort> <ThreadsInPool> <WriteToThisManyServers>] [-c <Clients>] [-n <ConcurrencyPerClient>] [-g <GetProportion>] [-v <ValueBytes>] [-k uniform|zipf] [-w <KeyWindow>] [-d <RunSeconds>] [-i <ReportIntervalSeconds>] [-o <OutputDir>] [-x <StandInServiceMicros>] [-W <StandInWorkers>] [-- <MiddlewareOptions>]");
+		if (errorMessage != null) {
+			System.err.println();
+			System.err.println("Error message: " + errorMessage);
+		}
+
+	}
+}
@@ -12,6 +12,7 @@ public class RunMW {
 	static List<String> mcAddresses = null;
 	static int numThreadsPTP = -1;
 	static int writeToCount = -1;
+	static MiddlewareConfig config = new MiddlewareConfig();
 
 	public static void main(String[] args) throws Exception {
 
@@ -25,12 +26,14 @@ public class RunMW {
 		// Start the Middleware
 		// -----------------------------------------------------------------------------
 
-		new MyMiddleware(myIp, myPort, mcAddresses, numThreadsPTP, writeToCount)
-				.run();
+		new MyMiddleware(myIp, myPort, mcAddresses, numThreadsPTP, writeToCount,
+				config).run();
 
 	}
 
-	private static void parseArguments(String[] args) {
+	// fills fields above, RunLoad passes arguments of its in-process
+	// middleware here as well
+	static void parseArguments(String[] args) {
 		Map<String, List<String>> params = new HashMap<>();
 
 		List<String> options = null;
@@ -93,12 +96,174 @@ public class RunMW {
 			System.exit(1);
 		}
 
+		// optional, by default all connections are served by one selector thread
+		if (params.get("s") != null)
+			config.numSelectors = Integer.parseInt(params.get("s").get(0));
+
+		if (config.numSelectors < 1) {
+			printUsageWithError("Provide at least one selector thread!");
+			System.exit(1);
+		}
+
+		// optional, md5 keeps key placement of earlier versions,
+		// murmur3 is much cheaper but moves keys to other servers
+		if (params.get("h") != null)
+			config.hashFunction = params.get("h").get(0);
+
+		if (!config.hashFunction.equals("md5")
+				&& !config.hashFunction.equals("murmur3")) {
+			printUsageWithError("Hash function must be md5 or murmur3!");
+			System.exit(1);
+		}
+
+		// optional, by default GETs are pipelined over -c connections
+		// per server, "threads" brings back blocking pool of -t threads,
+		// "virtual" runs the same -t blocking clients on virtual threads
+		if (params.get("g") != null)
+			config.getMode = params.get("g").get(0);
+
+		if (!config.getMode.equals("pipelined")
+				&& !config.getMode.equals("threads")
+				&& !config.getMode.equals("virtual")) {
+			printUsageWithError("GET mode must be pipelined, threads or virtual!");
+			System.exit(1);
+		}
+
+		if (params.get("c") != null)
+			config.numConnections = Integer.parseInt(params.get("c").get(0));
+
+		if (config.numConnections < 1) {
+			printUsageWithError("Provide at least one connection per server!");
+			System.exit(1);
+		}
+
+		if (params.get("i") != null)
+			config.statsInterval = Integer.parseInt(params.get("i").get(0));
+
+		if (config.statsInterval < 1) {
+			printUsageWithError("Latency report interval must be at least one second!");
+			System.exit(1);
+		}
+
+		if (params.get("n") != null)
+			config.nearCacheMegabytes = Integer.parseInt(params.get("n").get(0));
+
+		if (config.nearCacheMegabytes < 0) {
+			printUsageWithError("Near cache size cannot be negative!");
+			System.exit(1);
+		}
+
+		if (params.get("f") != null) {
+			String singleFlight = params.get("f").get(0);
+			if (!singleFlight.equals("on") && !singleFlight.equals("off")) {
+				printUsageWithError("GET coalescing must be on or off!");
+				System.exit(1);
+			}
+			config.singleFlight = singleFlight.equals("on");
+		}
+
+		if (params.get("q") != null)
+			config.queueCapacity = Integer.parseInt(params.get("q").get(0));
+
+		if (config.queueCapacity < 1) {
+			printUsageWithError("Queue capacity must be at least 1!");
+			System.exit(1);
+		}
+
+		if (params.get("o") != null)
+			config.overloadPolicy = params.get("o").get(0);
+
+		if (!config.overloadPolicy.equals("pause")
+				&& !config.overloadPolicy.equals("reject")) {
+			printUsageWithError("Overload policy must be pause or reject!");
+			System.exit(1);
+		}
+
+		if (params.get("w") != null)
+			config.maxQueueWait = Integer.parseInt(params.get("w").get(0));
+
+		if (config.maxQueueWait < 0) {
+			printUsageWithError("Maximum queue wait cannot be negative!");
+			System.exit(1);
+		}
+
+		if (params.get("e") != null)
+			config.readMode = params.get("e").get(0);
+
+		if (!config.readMode.equals("primary")
+				&& !config.readMode.equals("least")
+				&& !config.readMode.equals("p2c")) {
+			printUsageWithError("Read mode must be primary, least or p2c!");
+			System.exit(1);
+		}
+
+		if (params.get("b") != null)
+			config.backendProtocol = params.get("b").get(0);
+
+		if (!config.backendProtocol.equals("text")
+				&& !config.backendProtocol.equals("binary")) {
+			printUsageWithError("Backend protocol must be text or binary!");
+			System.exit(1);
+		}
+
+		// optional, by default a write is answered when all replicas
+		// stored it, with -a as soon as this many of them did
+		if (params.get("a") != null)
+			config.writeQuorum = Integer.parseInt(params.get("a").get(0));
+
+		if (config.writeQuorum < 0 || config.writeQuorum > writeToCount) {
+			printUsageWithError("Write quorum must be between 0 (all replicas) and the replication factor!");
+			System.exit(1);
+		}
+
+		// optional, without it middleware waits for memcached forever
+		if (params.get("x") != null)
+			config.backendTimeout = Integer.parseInt(params.get("x").get(0));
+
+		if (config.backendTimeout < 0) {
+			printUsageWithError("Backend timeout cannot be negative!");
+			System.exit(1);
+		}
+
+		// optional, percentile and budget of hedged GETs
+		if (params.get("d") != null) {
+			config.hedgePercentile = Double.parseDouble(params.get("d").get(0));
+			if (params.get("d").size() > 1)
+				config.hedgeBudget = Integer.parseInt(params.get("d").get(1));
+		}
+
+		if (config.hedgePercentile < 0 || config.hedgePercentile >= 100
+				|| config.hedgeBudget < 0 || config.hedgeBudget > 100) {
+			printUsageWithError("Hedge percentile must be below 100 and hedge budget between 0 and 100 percent!");
+			System.exit(1);
+		}
+
+		// a write answered by quorum is still missing on some replicas,
+		// GETs of other replicas and near cache fills would see old value
+		if (config.writeQuorum > 0 && config.writeQuorum < writeToCount
+				&& (!config.readMode.equals("primary")
+						|| config.hedgePercentile > 0
+						|| config.nearCacheMegabytes > 0)) {
+			printUsageWithError("Write quorum below the replication factor needs primary reads (-e primary), no hedging (-d) and no near cache (-n)!");
+			System.exit(1);
+		}
+
+		// optional, without it servers cannot be added or removed
+		if (params.get("k") != null) {
+			String clusterCommands = params.get("k").get(0);
+			if (!clusterCommands.equals("on") && !clusterCommands.equals("off")) {
+				printUsageWithError("Cluster commands must be on or off!");
+				System.exit(1);
+			}
+			config.clusterCommands = clusterCommands.equals("on");
+		}
+
 	}
 
 	private static void printUsageWithError(String errorMessage) {
 		System.err.println();
 		System.err
-				.println("Usage: -l <MyIP> -p <MyListenPort> -t <NumberOfThreadsInPools> -r <WriteToThisManyServers> -m <MemcachedIP:Port> <MemcachedIP2:Port2> ...");
+				.println("Usage: -l <MyIP> -p <MyListenPort> -t <NumberOfThreadsInPools> -r <WriteToThisManyServers> -m <MemcachedIP:Port> <MemcachedIP2:Port2> ... [-s <NumberOfSelectorThreads>] [-h md5|murmur3] [-g pipelined|threads|virtual] [-c <ConnectionsPerServer>] [-i <ReportIntervalSeconds>] [-n <NearCacheMegabytes>] [-f on|off] [-q <QueueCapacity>] [-o pause|reject] [-w <MaxQueueWaitMillis>] [-e primary|least|p2c] [-b text|binary] [-a <WriteQuorum>] [-x <BackendTimeoutMillis>] [-d <HedgePercentile> [<HedgeBudgetPercent>]] [-k on|off]");
 		if (errorMessage != null) {
 			System.err.println();
 			System.err.println("Error message: " + errorMessage);
@@ -0,0 +1,121 @@
+package ch.ethz.asltest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// coalesces identical GETs that are in flight at the same time, first
+// request of a command becomes leader and goes to memcached as usual,
+// requests with the same command coming before its response only wait
+// for it, and the one response is copied to all of them
+// leaders are found by their (first) key, which always goes to the same
+// server, and a write of the key detaches its leader so that GETs coming
+// after the write do not get a value read before it
+// maps are striped so selector threads rarely meet on one lock
+public class SingleFlight {
+
+	private static final int NUM_STRIPES = 16;
+
+	private BufferPool bufferPool;
+
+	// key of every leader, mapped to the leader
+	private List<Map<ByteBuffer, Message>> stripes;
+
+	public SingleFlight(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+		this.stripes = new ArrayList<Map<ByteBuffer, Message>>();
+		for (int i = 0; i < NUM_STRIPES; i++) {
+			this.stripes.add(new HashMap<ByteBuffer, Message>());
+		}
+	}
+
+	// returns true if request was attached to a leader and must not be
+	// sent to memcached, otherwise request is the leader now
+	public boolean join(Message request) {
+		ByteBuffer key = key(request);
+		Map<ByteBuffer, Message> leaders = this.stripeOf(key);
+		synchronized (leaders) {
+			Message leader = leaders.get(key);
+			if (leader != null && command(leader).equals(command(request))) {
+				// follower is timed from here to leader's response, it never
+				// waits in a queue, and it must not fill near cache, leader
+				// may have read a value older than a write that finished
+				// before follower came
+				request.queueTime = 0;
+				request.processingTime = System.nanoTime();
+				request.cacheStamp = -1;
+				leader.followers.add(request);
+				return true;
+			}
+			if (leader != null) {
+				// "gets" of the key, or several keys, are sent on their own
+				return false;
+			}
+			request.singleFlight = this;
+			request.followers = new ArrayList<Message>();
+			leaders.put(key, request);
+			return false;
+		}
+	}
+
+	// called with every write, leader of its key keeps serving requests
+	// that joined it so far, but nobody joins it anymore
+	public void forget(Message write) {
+		ByteBuffer key = key(write);
+		Map<ByteBuffer, Message> leaders = this.stripeOf(key);
+		synchronized (leaders) {
+			leaders.remove(key);
+		}
+	}
+
+	// called with response of leader before it goes to leader's client
+	public void complete(Message leader, ByteBuffer response) {
+		ByteBuffer key = key(leader);
+		Map<ByteBuffer, Message> leaders = this.stripeOf(key);
+		List<Message> followers;
+		synchronized (leaders) {
+			// a write may have replaced us with a newer leader already
+			if (leaders.get(key) == leader) {
+				leaders.remove(key);
+			}
+			followers = leader.followers;
+			leader.followers = null;
+		}
+		leader.singleFlight = null;
+
+		long time = System.nanoTime();
+		for (Message follower : followers) {
+			follower.processingTime = (time - follower.processingTime) / 1000;
+			follower.successFlag = leader.successFlag;
+
+			ByteBuffer copy = this.bufferPool.acquire(response.remaining());
+			copy.put(response.duplicate());
+			copy.flip();
+			follower.server.send(follower.id, copy);
+		}
+	}
+
+	// whole command between 0 and limit, position of data is moved by
+	// clients while they write it, so we look at it through a duplicate
+	private static ByteBuffer command(Message request) {
+		ByteBuffer command = request.data.duplicate();
+		command.position(0);
+		return command;
+	}
+
+	// second token of the command, same way as messageProcessor finds it
+	private static ByteBuffer key(Message request) {
+		ByteBuffer key = request.data.duplicate();
+		int keyStart = MessageProcessor.tokenStart(key,
+				MessageProcessor.tokenEnd(key, 0));
+		key.limit(MessageProcessor.tokenEnd(key, keyStart));
+		key.position(keyStart);
+		return key;
+	}
+
+	private Map<ByteBuffer, Message> stripeOf(ByteBuffer key) {
+		return this.stripes.get((key.hashCode() & 0x7fffffff) % NUM_STRIPES);
+	}
+}
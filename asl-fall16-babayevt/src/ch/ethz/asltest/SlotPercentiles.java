@@ -0,0 +1,62 @@
+package ch.ethz.asltest;
+
+import java.util.List;
+
+// one percentile of one latency metric of every server slot, taken over
+// what the selector threads recorded since the previous update, so a
+// server that gets slower gets a higher percentile as well
+// hedger and health monitor update theirs every second on their own
+// thread, histograms of the selector threads are only read
+public class SlotPercentiles {
+
+	// a slot needs this many requests in an interval for a new value
+	private static final long MIN_SAMPLES = 100;
+
+	private List<LatencyStats> stats;
+
+	private int op;
+
+	private int metric;
+
+	private double percentile;
+
+	// percentile of every slot in microseconds, 0 while we have not seen
+	// enough requests of it
+	private long[] values = new long[Cluster.MAX_SERVERS];
+
+	// histogram of every slot at the last update
+	private LatencyHistogram[] previous = new LatencyHistogram[Cluster.MAX_SERVERS];
+
+	public SlotPercentiles(List<LatencyStats> stats, int op, int metric,
+			double percentile) {
+		this.stats = stats;
+		this.op = op;
+		this.metric = metric;
+		this.percentile = percentile;
+		for (int i = 0; i < Cluster.MAX_SERVERS; i++) {
+			this.previous[i] = new LatencyHistogram();
+		}
+	}
+
+	public long get(int slot) {
+		return this.values[slot];
+	}
+
+	// new value of every slot from its requests since the last update, a
+	// slot with too few of them keeps its old one
+	public void update() {
+		for (int slot = 0; slot < Cluster.MAX_SERVERS; slot++) {
+			LatencyHistogram current = new LatencyHistogram();
+			for (LatencyStats s : this.stats) {
+				current.add(s.histogram(this.op, slot, this.metric));
+			}
+			LatencyHistogram interval = new LatencyHistogram();
+			interval.add(current);
+			interval.subtract(this.previous[slot]);
+			this.previous[slot] = current;
+			if (interval.count() >= MIN_SAMPLES) {
+				this.values[slot] = interval.percentile(this.percentile);
+			}
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package ch.ethz.asltest;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// answers "stats", "stats queues", "stats servers" and "stats latency"
+// sent to the middleware port like to memcached, with "STAT <name>
+// <value>" lines and "END"
+// nothing is counted for it on the request path: operations, misses
+// and failed writes come from latency stats the selector threads record
+// anyway (a GET without value, as SynClient detects by "END", and a
+// write some replica refused are unsuccessful, late failures of writes
+// answered by quorum are counted by asynchronous clients), queue depths
+// are sampled and requests in flight are counted by walking the
+// in-flight table
+// answers are built on the admin thread of messageProcessor, merging
+// stats of all selector threads must not hold up a selector loop
+// counters belong to server slots, a server that takes a slot of one
+// that left continues its counts
+public class StatsCommand {
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private static final String USAGE = "CLIENT_ERROR usage: stats [queues|servers|latency]\r\n";
+
+	private List<LatencyStats> stats;
+
+	private MessageProcessor messageProcessor;
+
+	private long startTime = System.nanoTime();
+
+	public StatsCommand(List<LatencyStats> stats,
+			MessageProcessor messageProcessor) {
+		this.stats = stats;
+		this.messageProcessor = messageProcessor;
+	}
+
+	// "stats" alone or followed by a space
+	static boolean isStatsCommand(ByteBuffer data) {
+		int end = MessageProcessor.tokenEnd(data, 0);
+		if (end != 5) {
+			return false;
+		}
+		byte[] command = "stats".getBytes();
+		for (int i = 0; i < command.length; i++) {
+			if (data.get(i) != command[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void answer(final Message request) {
+		this.messageProcessor.runAdmin(request, new Runnable() {
+			public void run() {
+				ByteBuffer data = request.data;
+				int start = MessageProcessor.tokenStart(data, 5);
+				int end = MessageProcessor.tokenEnd(data, start);
+				StringBuilder out = new StringBuilder();
+				if (start == end) {
+					general(out);
+				} else if (is(data, start, end, "queues")) {
+					queues(out);
+				} else if (is(data, start, end, "servers")) {
+					servers(out);
+				} else if (is(data, start, end, "latency")) {
+					latency(out);
+				} else {
+					request.successFlag = false;
+					request.reply(USAGE.getBytes());
+					return;
+				}
+				out.append("END\r\n");
+				request.reply(out.toString().getBytes());
+			}
+		});
+	}
+
+	// totals of the whole middleware
+	private void general(StringBuilder out) {
+		LatencyStats merged = this.merge();
+		Cluster cluster = this.messageProcessor.cluster();
+		long gets = 0;
+		long sets = 0;
+		long misses = 0;
+		long failures = 0;
+		for (int server = LatencyStats.FIRST; server < merged.numServers; server++) {
+			gets += merged.histogram(LatencyStats.GET, server, 0).count();
+			sets += merged.histogram(LatencyStats.SET, server, 0).count();
+			misses += merged.unsuccessful(LatencyStats.GET, server);
+			failures += merged.unsuccessful(LatencyStats.SET, server);
+		}
+		long lateFailures = 0;
+		for (Backend backend : cluster.backends) {
+			lateFailures += backend.asynClient.lateFailures.get();
+		}
+		long rejected = 0;
+		long paused = 0;
+		long expired = 0;
+		for (int i = 0; i < Cluster.MAX_SERVERS; i++) {
+			rejected += this.messageProcessor.rejected.get(i);
+			paused += this.messageProcessor.paused.get(i);
+			expired += this.messageProcessor.expired.get(i);
+		}
+
+		stat(out, "uptime", this.uptime());
+		stat(out, "servers", cluster.backends.size());
+		stat(out, "servers_down", this.messageProcessor.downServers().size());
+		stat(out, "in_flight",
+				this.messageProcessor.inFlight.count()[Cluster.MAX_SERVERS]);
+		stat(out, "cmd_get", gets);
+		stat(out, "cmd_set", sets);
+		stat(out, "get_hits", gets - misses);
+		stat(out, "get_misses", misses);
+		stat(out, "set_failures", failures);
+		stat(out, "late_set_failures", lateFailures);
+		stat(out, "rejected", rejected);
+		stat(out, "paused", paused);
+		stat(out, "expired", expired);
+		Hedger hedger = this.messageProcessor.hedger;
+		if (hedger != null) {
+			stat(out, "hedged_gets", hedger.hedged.get());
+			stat(out, "hedge_wins", hedger.wins.get());
+			stat(out, "hedges_over_budget", hedger.overBudget.get());
+		}
+	}
+
+	// queue depths and requests in flight of every server right now,
+	// together with overload counters
+	private void queues(StringBuilder out) {
+		int[] inFlight = this.messageProcessor.inFlight.count();
+		for (Backend backend : this.messageProcessor.cluster().backends) {
+			String prefix = backend.name() + ":";
+			int slot = backend.slot;
+			stat(out, prefix + "get_queue", backend.getQueue.size());
+			stat(out, prefix + "set_queue", backend.asynClient.queueDepth());
+			stat(out, prefix + "in_flight", inFlight[slot]);
+			stat(out, prefix + "rejected",
+					this.messageProcessor.rejected.get(slot));
+			stat(out, prefix + "paused",
+					this.messageProcessor.paused.get(slot));
+			stat(out, prefix + "expired",
+					this.messageProcessor.expired.get(slot));
+		}
+	}
+
+	// operations of every server since start and their rate
+	private void servers(StringBuilder out) {
+		LatencyStats merged = this.merge();
+		long uptime = Math.max(this.uptime(), 1);
+		for (Backend backend : this.messageProcessor.cluster().backends) {
+			String prefix = backend.name() + ":";
+			int slot = backend.slot;
+			long gets = merged.histogram(LatencyStats.GET, slot, 0).count();
+			long sets = merged.histogram(LatencyStats.SET, slot, 0).count();
+			long misses = merged.unsuccessful(LatencyStats.GET, slot);
+			stat(out, prefix + "cmd_get", gets);
+			stat(out, prefix + "cmd_set", sets);
+			stat(out, prefix + "get_per_sec", gets / uptime);
+			stat(out, prefix + "set_per_sec", sets / uptime);
+			stat(out, prefix + "get_hits", gets - misses);
+			stat(out, prefix + "get_misses", misses);
+			stat(out, prefix + "hit_ratio",
+					gets == 0 ? "0.00" : String.format("%.2f",
+							(gets - misses) / (double) gets));
+			stat(out, prefix + "set_failures",
+					merged.unsuccessful(LatencyStats.SET, slot));
+			stat(out, prefix + "late_set_failures",
+					backend.asynClient.lateFailures.get());
+			stat(out, prefix + "state", "up");
+			stat(out, prefix + "backend_failures",
+					backend.health.failures.get());
+		}
+		// failed over servers have no clients, their counts are gone
+		for (Backend backend : this.messageProcessor.downServers()) {
+			stat(out, backend.name() + ":state", "down");
+		}
+	}
+
+	// percentiles since start over all servers, in microseconds
+	private void latency(StringBuilder out) {
+		LatencyStats merged = this.merge();
+		for (int op = 0; op < LatencyStats.OPS.length; op++) {
+			for (int metric = 0; metric < LatencyStats.METRICS.length; metric++) {
+				LatencyHistogram all = new LatencyHistogram();
+				for (int server = LatencyStats.FIRST; server < merged.numServers; server++) {
+					all.add(merged.histogram(op, server, metric));
+				}
+				String prefix = LatencyStats.OPS[op] + ":"
+						+ LatencyStats.METRICS[metric] + ":";
+				stat(out, prefix + "count", all.count());
+				if (all.count() == 0) {
+					continue;
+				}
+				stat(out, prefix + "mean", all.mean());
+				for (int i = 0; i < PERCENTILES.length; i++) {
+					stat(out, prefix + "p" + format(PERCENTILES[i]),
+							all.percentile(PERCENTILES[i]));
+				}
+				stat(out, prefix + "max", all.max());
+			}
+		}
+	}
+
+	private LatencyStats merge() {
+		LatencyStats merged = new LatencyStats(Cluster.MAX_SERVERS);
+		for (LatencyStats s : this.stats) {
+			merged.add(s);
+		}
+		return merged;
+	}
+
+	private long uptime() {
+		return (System.nanoTime() - this.startTime) / 1000000000L;
+	}
+
+	private static void stat(StringBuilder out, String name, Object value) {
+		out.append("STAT ").append(name).append(' ').append(value)
+				.append("\r\n");
+	}
+
+	// 50 as "50", 99.9 as "99.9"
+	private static String format(double percentile) {
+		if (percentile == Math.floor(percentile)) {
+			return String.valueOf((long) percentile);
+		}
+		return String.valueOf(percentile);
+	}
+
+	private static boolean is(ByteBuffer data, int start, int end,
+			String word) {
+		if (end - start != word.length()) {
+			return false;
+		}
+		for (int i = 0; i < word.length(); i++) {
+			if (data.get(start + i) != word.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
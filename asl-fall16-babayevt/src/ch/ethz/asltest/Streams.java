@@ -0,0 +1,52 @@
+package ch.ethz.asltest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// helper methods to read memcached text protocol from blocking sockets,
+// health monitor reads its probe answers with them, memcached stand-in
+// and load generator their commands and responses
+public class Streams {
+
+	private Streams() {
+	}
+
+	// line without "\r\n", null at end of stream, a line longer than
+	// MAX_LINE_LENGTH is a broken peer
+	public static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r') {
+					line.setLength(length - 1);
+				}
+				return line.toString();
+			}
+			if (line.length() == RequestParser.MAX_LINE_LENGTH) {
+				throw new IOException("line too long");
+			}
+			line.append((char) b);
+		}
+		return null;
+	}
+
+	public static void readFully(InputStream in, byte[] data)
+			throws IOException {
+		readFully(in, data, 0, data.length);
+	}
+
+	public static void readFully(InputStream in, byte[] data, int offset,
+			int length) throws IOException {
+		while (length > 0) {
+			int n = in.read(data, offset, length);
+			if (n == -1) {
+				throw new EOFException();
+			}
+			offset += n;
+			length -= n;
+		}
+	}
+}
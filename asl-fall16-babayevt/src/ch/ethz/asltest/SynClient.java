@@ -3,7 +3,10 @@ package ch.ethz.asltest;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.*;
 
@@ -13,45 +16,127 @@ public class SynClient implements Runnable {
 
 	private int port;
 
-	private ByteBuffer readBuffer = ByteBuffer.allocate(2048);
-
-	private ByteBuffer writeBuffer = ByteBuffer.allocate(1024);
+	// responses are read into buffers of this pool and handed
+	// to mwServer as they are, it releases them after writing
+	private BufferPool bufferPool;
 
 	// main queue passed by messageProcessor
 	private BlockingQueue<Message> queue;
 
-	// we gonna have only 1 socket channel
+	// we gonna have only 1 socket channel, null after it broke or timed
+	// out until the next request opens a new one
 	private SocketChannel socketChannel;
 
-	public SynClient(String hostAddress, int port, BlockingQueue<Message> queue)
+	// failed and timed out requests are reported here
+	private BackendHealth health;
+
+	// how long connect and every read may take, 0 waits forever (-x),
+	// with a timeout channel is non blocking and reads wait in selector
+	private int timeoutMillis;
+
+	private Selector selector;
+
+	// most responses fit into this, bigger ones get a bigger buffer
+	private static final int READ_BUFFER_SIZE = 2048;
+
+	// how long a retired client waits for more requests, in milliseconds
+	private static final long RETIRE_CHECK = 10;
+
+	// nanoTime after which a retired client takes no more requests,
+	// 0 while client is in use
+	private volatile long retireAt = 0;
+
+	public SynClient(String hostAddress, int port, BlockingQueue<Message> queue,
+			BufferPool bufferPool, BackendHealth health, int timeoutMillis)
 			throws IOException {
 		this.hostAddress = hostAddress;
 		this.port = port;
 		this.queue = queue;
+		this.bufferPool = bufferPool;
+		this.health = health;
+		this.timeoutMillis = timeoutMillis;
+		if (timeoutMillis > 0) {
+			this.selector = Selector.open();
+		}
+		this.connect();
+	}
+
+	private void connect() throws IOException {
+		InetSocketAddress address = new InetSocketAddress(
+				InetAddress.getByName(this.hostAddress), this.port);
 		this.socketChannel = SocketChannel.open();
-		// put channel in blocking mode for synchronous requests handling
-		this.socketChannel.configureBlocking(true);
-		this.socketChannel.connect(new InetSocketAddress(InetAddress
-				.getByName(this.hostAddress), this.port));
+		if (this.selector == null) {
+			// put channel in blocking mode for synchronous requests handling
+			this.socketChannel.configureBlocking(true);
+			this.socketChannel.connect(address);
+			return;
+		}
+		try {
+			this.socketChannel.socket().connect(address, this.timeoutMillis);
+			this.socketChannel.configureBlocking(false);
+			this.socketChannel.register(this.selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			this.disconnect();
+			throw e;
+		}
+	}
+
+	// called when server left the cluster, requests queued until stopAt
+	// are still served, then connection is closed and thread ends
+	public void retire(long stopAt) {
+		this.retireAt = stopAt;
 	}
 
 	public void run() {
 		while (true) {
 			try {
 				// use thread safe .take() method since other instances
-				// of this class will try to access same queue 
-				Message currentRequest = queue.take();
+				// of this class will try to access same queue, retired
+				// client polls so it notices when it is done
+				Message currentRequest;
+				if (this.retireAt == 0) {
+					currentRequest = queue.take();
+				} else {
+					currentRequest = queue.poll(RETIRE_CHECK,
+							TimeUnit.MILLISECONDS);
+					if (currentRequest == null) {
+						if (System.nanoTime() >= this.retireAt) {
+							this.close();
+							return;
+						}
+						continue;
+					}
+				}
 				// finalize logging of queue time for request
-				if (currentRequest.isLogged) {
-					currentRequest.queueTime = (System.nanoTime() - currentRequest.queueTime) / 1000;
+				long now = System.nanoTime();
+				currentRequest.queueTime = (now - currentRequest.queueTime) / 1000;
+				// waited too long, client already got an error, or other copy
+				// of a hedged GET was answered
+				if (currentRequest.expire(now) || currentRequest.superseded()) {
+					continue;
+				}
+				// server was failed over, do not wait for it
+				if (this.health.open) {
+					currentRequest.successFlag = false;
+					currentRequest.reply(RequestState.SERVER_ERROR);
+					continue;
 				}
 				try {
+					if (this.socketChannel == null) {
+						this.connect();
+					}
 					// first write, then read
 					// read is blocking a thread until there is some response
 					this.write(currentRequest);
 					this.read(currentRequest);
+					this.health.success(currentRequest.processingTime);
 				} catch (IOException e) {
-					e.printStackTrace();
+					// broken or timed out, a late response would be taken
+					// for the next request, so connection is given up
+					this.health.failure();
+					this.disconnect();
+					currentRequest.successFlag = false;
+					currentRequest.reply(RequestState.SERVER_ERROR);
 				}
 			} catch (InterruptedException e) {
 				e.printStackTrace();
@@ -59,33 +144,107 @@ public class SynClient implements Runnable {
 		}
 	}
 
+	private void close() {
+		this.disconnect();
+		if (this.selector != null) {
+			try {
+				this.selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void disconnect() {
+		if (this.socketChannel == null) {
+			return;
+		}
+		try {
+			this.socketChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		this.socketChannel = null;
+	}
+
 	private void write(Message request) throws IOException {
-		this.writeBuffer.clear();
-		this.writeBuffer = ByteBuffer.wrap(request.data);
-		this.socketChannel.write(this.writeBuffer);
-		// start logging processing time
-		if (request.isLogged) {
-			request.processingTime = System.nanoTime();
+		request.data.position(0);
+		long deadline = System.nanoTime() + this.timeoutMillis * 1000000L;
+		while (request.data.hasRemaining()) {
+			// non blocking channel takes nothing while socket is full
+			if (this.socketChannel.write(request.data) == 0
+					&& this.selector != null && System.nanoTime() > deadline) {
+				throw new SocketTimeoutException("memcached takes no request");
+			}
 		}
+		// start logging processing time
+		request.processingTime = System.nanoTime();
 	}
 
+	// reads until the whole response is there, VALUE lines tell how big
+	// it gets, so a big value is read straight into a buffer of its size
+	// and this buffer goes to the client without any copy of the value
 	private void read(Message request) throws IOException {
-		this.readBuffer.clear();
-		int numRead = this.socketChannel.read(this.readBuffer);
-		// finalize logging of processing time
-		if (request.isLogged) { 
-			request.processingTime = (System.nanoTime() - request.processingTime) / 1000;
+		ByteBuffer readBuffer = this.bufferPool.acquire(READ_BUFFER_SIZE);
+		int end;
+		while ((end = GetResponse.end(readBuffer, 0, readBuffer.position())) == -1) {
+			if (!readBuffer.hasRemaining()) {
+				readBuffer = this.grow(readBuffer);
+			}
+			int numRead;
+			try {
+				numRead = this.fill(readBuffer);
+			} catch (IOException e) {
+				this.bufferPool.release(readBuffer);
+				throw e;
+			}
+			if (numRead == -1) {
+				this.bufferPool.release(readBuffer);
+				throw new IOException("memcached closed connection");
+			}
 		}
-		byte[] dataCopy = new byte[numRead];
-		System.arraycopy(this.readBuffer.array(), 0, dataCopy, 0, numRead);
+		// finalize logging of processing time
+		request.processingTime = (System.nanoTime() - request.processingTime) / 1000;
+		readBuffer.limit(end);
+		readBuffer.position(0);
 		// if first letter of response is "E" it means we received
 		// an "END" response, despite ideally response should start
 		// with word "VALUE"
 		// and then we set unsuccessful flag for this request
-		if (dataCopy[0] == 69) {
+		if (GetResponse.isMiss(readBuffer, 0)) {
 			request.successFlag = false;
 		}
-		// send response back to memaslap client
-		request.server.send(request.socket, dataCopy);
+		// send response back to memaslap client, buffer goes along with it
+		request.reply(readBuffer);
+	}
+
+	// reads at least one byte, with a timeout it waits for them in
+	// selector at most timeoutMillis
+	private int fill(ByteBuffer readBuffer) throws IOException {
+		if (this.selector == null) {
+			return this.socketChannel.read(readBuffer);
+		}
+		int numRead;
+		while ((numRead = this.socketChannel.read(readBuffer)) == 0) {
+			if (this.selector.select(this.timeoutMillis) == 0) {
+				throw new SocketTimeoutException("memcached did not answer in "
+						+ this.timeoutMillis + " ms");
+			}
+			this.selector.selectedKeys().clear();
+		}
+		return numRead;
+	}
+
+	// full buffer is replaced by one that holds the whole response if
+	// its VALUE lines are known already, else by one twice as big
+	private ByteBuffer grow(ByteBuffer readBuffer) {
+		int needed = GetResponse.minimumLength(readBuffer, 0,
+				readBuffer.position());
+		ByteBuffer bigger = this.bufferPool.acquire(Math.max(needed,
+				readBuffer.capacity() * 2));
+		readBuffer.flip();
+		bigger.put(readBuffer);
+		this.bufferPool.release(readBuffer);
+		return bigger;
 	}
 }
\ No newline at end of file
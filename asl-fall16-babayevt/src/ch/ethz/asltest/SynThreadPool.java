@@ -1,19 +1,81 @@
 package ch.ethz.asltest;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
 
 // this helper class initiates $numThreadPTP$ instances of SynClient, creating a ThreadPool
+// in virtual mode every SynClient gets a virtual thread instead, its
+// blocking read then parks only the virtual thread and not an OS thread
 public class SynThreadPool {
 
+	// Thread.startVirtualThread() of Java 21, looked up at runtime so that
+	// middleware still builds and runs on older JDKs, null there
+	private static final Method START_VIRTUAL = virtualThreadStarter();
+
+	// platform threads started instead of virtual ones keep a small
+	// stack, SynClient does not need more
+	private static final long FALLBACK_STACK_SIZE = 256 * 1024;
+
+	private static boolean warned = false;
+
+	private List<SynClient> clients = new ArrayList<SynClient>();
+
 	public SynThreadPool(int numThreadPTP, String address, int port,
-			BlockingQueue<Message> queue) {
+			BlockingQueue<Message> queue, BufferPool bufferPool,
+			boolean virtual, BackendHealth health, int timeoutMillis) {
 		for (int i = 0; i < numThreadPTP; i++) {
 			try {
-				new Thread(new SynClient(address, port, queue)).start();
+				SynClient client = new SynClient(address, port, queue,
+						bufferPool, health, timeoutMillis);
+				this.clients.add(client);
+				if (!virtual) {
+					new Thread(client).start();
+				} else if (!startVirtual(client)) {
+					new Thread(null, client, "SynClientThread" + port + "-"
+							+ i, FALLBACK_STACK_SIZE).start();
+				}
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
 	}
-}
\ No newline at end of file
+
+	// called when server left the cluster, see SynClient.retire()
+	public void retire(long stopAt) {
+		for (SynClient client : this.clients) {
+			client.retire(stopAt);
+		}
+	}
+
+	// returns false if this JVM cannot start virtual threads, Java 19 and
+	// 20 have them only as preview feature
+	private static boolean startVirtual(Runnable client) {
+		if (START_VIRTUAL != null) {
+			try {
+				START_VIRTUAL.invoke(null, client);
+				return true;
+			} catch (IllegalAccessException e) {
+			} catch (InvocationTargetException e) {
+			}
+		}
+		synchronized (SynThreadPool.class) {
+			if (!warned) {
+				System.err.println("Virtual threads need Java 21, SynClients run on platform threads");
+				warned = true;
+			}
+		}
+		return false;
+	}
+
+	private static Method virtualThreadStarter() {
+		try {
+			return Thread.class.getMethod("startVirtualThread", Runnable.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}